@@ -0,0 +1,224 @@
+package camera;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * Checks the steady state of the camera control against allocation budgets, so that once the
+ * hot paths stop allocating, they stay that way.
+ * 
+ * Thousands of RESET, STATUS and IMAGE commands are run over loopback against a DummyCam in this
+ * JVM (with no errors, and no logging), after a warm-up so the JIT has done its work. The bytes
+ * allocated by the calling thread, the managing thread, and the timer thread are measured with
+ * com.sun.management.ThreadMXBean. The managing thread's cost for each datagram is worked out from
+ * the difference between IMAGE (many datagrams) and RESET (one datagram), which separates the
+ * receive loop from the fixed cost of each command.
+ * 
+ * Each of those gets a budget, and the check exits with status 1 if any budget is exceeded (or
+ * any command fails, as the failure paths are not the steady state):
+ * 
+ * <pre>
+ * java -cp bin camera.AllocationCheck [-cycles n] [-warmup n] [-window n] [-strategy s] [-port p]
+ *                                     [-datagram bytes] [-command bytes] [-caller bytes]
+ * </pre>
+ * 
+ * Thread allocation counters miss nothing the threads allocate, but to prove there is nothing to
+ * collect at all, run it with the Epsilon (no-op) collector. The heap then only ever grows, the
+ * growth is reported (it includes the DummyCam's garbage), and anything that allocates in the steady
+ * state eventually runs it out:
+ * 
+ * <pre>
+ * java -XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC -Xmx256m -cp bin camera.AllocationCheck
+ * </pre>
+ */
+public class AllocationCheck {
+    
+    private static final CameraCommands RESET = new CameraCommands("RESET", 1, 4);
+    private static final CameraCommands STATUS = new CameraCommands("STATUS", 1, 8);
+    private static final CameraCommands IMAGE = new CameraCommands("IMAGE", 480, 640);
+    
+    private static final CameraCommands[] COMMANDS = { RESET, STATUS, IMAGE };
+    
+    private final CameraControl control;
+    private final com.sun.management.ThreadMXBean threads;
+    private final long manager;
+    private final long timer;
+    
+    private AllocationCheck(CameraControl control, com.sun.management.ThreadMXBean threads) {
+        this.control = control;
+        this.threads = threads;
+        this.manager = control.getManagerThread().getId();
+        this.timer = DeadlineTimer.shared().getThread().getId();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int cycles = 2000;
+        int warmup = 2000;
+        int window = 1;
+        int port = 12347;
+        WaitStrategy strategy = WaitStrategy.SELECT;
+        // the budgets, in bytes. Each command costs the manager its Transfer (and the frame's bookkeeping),
+        // and its Result, and costs the caller its Task and future. Receiving a datagram costs nothing.
+        double datagramBudget = 0;
+        double commandBudget = 640;
+        double callerBudget = 256;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-cycles":
+                    cycles = Integer.parseInt(args[++i]);
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-strategy":
+                    strategy = WaitStrategy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-datagram":
+                    datagramBudget = Double.parseDouble(args[++i]);
+                    break;
+                case "-command":
+                    commandBudget = Double.parseDouble(args[++i]);
+                    break;
+                case "-caller":
+                    callerBudget = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("This JVM cannot measure the memory allocated by each thread");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM cannot measure the memory allocated by each thread");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        final DummyCam cam = new DummyCam(port);
+        cam.setErrorRate(0.0);
+        cam.setVerbose(false);
+        Thread dummy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cam.listen();
+                } catch (IOException e) {
+                    AsyncLog.error("DummyCam failed: {}").arg(e).publish();
+                }
+            }
+        }, "Allocation Check DummyCam");
+        dummy.setDaemon(true);
+        dummy.start();
+        
+        boolean pass = true;
+        try (CameraControl control = new CameraControl(new InetSocketAddress("localhost", port),
+                CameraEventLoopGroup.getDefault(), window, strategy)) {
+            AllocationCheck check = new AllocationCheck(control, threads);
+            
+            System.out.printf(Locale.ROOT, "# %d cycles after %d warm-up, window %d, %s%n", cycles, warmup, window, strategy);
+            System.out.printf(Locale.ROOT, "%-8s %10s %14s %14s %14s %16s %8s%n",
+                    "Command", "datagrams", "caller B/cmd", "manager B/cmd", "timer B/cmd", "heap growth B/cmd", "fails");
+            double[] perCommand = new double[COMMANDS.length];
+            for (int c = 0; c < COMMANDS.length; c++) {
+                CameraCommands cmd = COMMANDS[c];
+                check.cycle(cmd, warmup);
+                Measurement m = check.measure(cmd, cycles);
+                perCommand[c] = m.manager / (double)cycles;
+                System.out.printf(Locale.ROOT, "%-8s %10d %14.1f %14.1f %14.1f %16.1f %8d%n",
+                        cmd.getName(), cmd.getDatagramCount(),
+                        m.caller / (double)cycles, perCommand[c], m.timer / (double)cycles,
+                        m.heap / (double)cycles, m.fails);
+                if (m.fails > 0) {
+                    System.out.println("FAIL: " + m.fails + " " + cmd.getName() + " commands failed, the measurement is not of the steady state");
+                    pass = false;
+                }
+                pass &= within(cmd.getName() + " caller bytes per command", m.caller / (double)cycles, callerBudget);
+                pass &= within(cmd.getName() + " managing bytes per command", (m.manager + m.timer) / (double)cycles,
+                        commandBudget + datagramBudget * cmd.getDatagramCount());
+            }
+            
+            // the receive loop's share: what IMAGE costs the manager over what RESET costs it, for each extra datagram.
+            double perDatagram = (perCommand[2] - perCommand[0]) / (IMAGE.getDatagramCount() - RESET.getDatagramCount());
+            System.out.printf(Locale.ROOT, "receive loop: %.3f B/datagram%n", Math.max(0.0, perDatagram));
+            pass &= within("receive loop bytes per datagram", perDatagram, datagramBudget);
+        }
+        
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+    
+    /**
+     * The bytes allocated while running a number of commands.
+     */
+    private static final class Measurement {
+        private long caller;
+        private long manager;
+        private long timer;
+        private long heap;
+        private int fails;
+    }
+    
+    /**
+     * @return true if the measured value is within its budget (and say so if it is not).
+     */
+    private static boolean within(String what, double measured, double budget) {
+        // allow for the odd RESEND request or extra wake-up during an IMAGE, which is not the receive loop.
+        if (measured <= budget + 0.25) {
+            return true;
+        }
+        System.out.printf(Locale.ROOT, "FAIL: %s is %.3f, the budget is %.3f%n", what, measured, budget);
+        return false;
+    }
+    
+    /**
+     * Run the command a number of times, one after the other.
+     * @return the number that failed.
+     */
+    private int cycle(CameraCommands cmd, int count) throws InterruptedException {
+        int fails = 0;
+        for (int i = 0; i < count; i++) {
+            try (Result result = control.waitForACK(1000, cmd)) {
+                if (!result.isSuccess()) {
+                    fails++;
+                }
+            }
+        }
+        return fails;
+    }
+    
+    private Measurement measure(CameraCommands cmd, int count) throws InterruptedException {
+        final long self = Thread.currentThread().getId();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final Measurement m = new Measurement();
+        final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        final long callerBefore = threads.getThreadAllocatedBytes(self);
+        final long managerBefore = threads.getThreadAllocatedBytes(manager);
+        final long timerBefore = threads.getThreadAllocatedBytes(timer);
+        
+        m.fails = cycle(cmd, count);
+        
+        final long callerAfter = threads.getThreadAllocatedBytes(self);
+        final long managerAfter = threads.getThreadAllocatedBytes(manager);
+        final long timerAfter = threads.getThreadAllocatedBytes(timer);
+        m.heap = Math.max(0L, memory.getHeapMemoryUsage().getUsed() - heapBefore);
+        m.caller = callerAfter - callerBefore;
+        m.manager = managerAfter - managerBefore;
+        m.timer = timerAfter - timerBefore;
+        return m;
+    }
+    
+}
@@ -0,0 +1,296 @@
+package camera;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging that never makes the caller wait for the console.
+ * 
+ * A message is a format, with {} where each argument goes, and its arguments. The caller claims an entry
+ * in a preallocated ring, fills in the arguments, and publishes it. A background thread formats and writes
+ * the entries, in order. Nothing is allocated, and no string is built, on the calling thread:
+ * 
+ * <pre>
+ * AsyncLog.warn("{} data obtained {} for xfer {}").arg(kind).arg(size).arg(count).publish();
+ * </pre>
+ * 
+ * If the level is disabled, or the ring is full, the entry is a no-op that ignores its arguments, and a full
+ * ring counts the message as dropped (the writer reports how many were dropped) instead of blocking.
+ * Object arguments are only turned in to strings by the writer, so they must not change after publish().
+ * An exception whose stack trace should follow the message is given with trace().
+ * 
+ * The writer sleeps until something is published, and only flushes the console after writing.
+ * 
+ * The level is set with -Dcamera.log.level (DEBUG, INFO, WARN or ERROR, INFO by default), and the ring size
+ * with -Dcamera.log.ring (4096 by default).
+ */
+final class AsyncLog implements Runnable {
+    
+    /**
+     * How important a message is.
+     */
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+    
+    // the most arguments a message can have (any more are ignored).
+    private static final int MAXARGS = 6;
+    private static final long IDLE = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private static final AsyncLog LOG = new AsyncLog(
+            Level.valueOf(System.getProperty("camera.log.level", "INFO").toUpperCase(Locale.ROOT)),
+            Integer.getInteger("camera.log.ring", 4096),
+            System.out);
+    
+    /**
+     * One message, in the ring.
+     */
+    static final class Entry {
+        
+        private final boolean real;
+        // the sequence this entry was claimed for, and then published as.
+        private long sequence = -1;
+        private volatile long published = -1;
+        private Level level;
+        private String format;
+        private int count;
+        // which arguments are numbers (the rest are objects).
+        private int numeric;
+        private final long[] numbers = new long[MAXARGS];
+        private final Object[] objects = new Object[MAXARGS];
+        private Throwable thrown;
+        
+        private Entry(boolean real) {
+            this.real = real;
+        }
+        
+        /**
+         * @param value the next argument.
+         * @return this entry.
+         */
+        Entry arg(long value) {
+            if (real && count < MAXARGS) {
+                numbers[count] = value;
+                numeric |= 1 << count;
+                count++;
+            }
+            return this;
+        }
+        
+        /**
+         * @param value the next argument (it is turned in to a string later, on the writer thread).
+         * @return this entry.
+         */
+        Entry arg(Object value) {
+            if (real && count < MAXARGS) {
+                objects[count] = value;
+                count++;
+            }
+            return this;
+        }
+        
+        /**
+         * @param t an exception, whose stack trace is written after the message.
+         * @return this entry.
+         */
+        Entry trace(Throwable t) {
+            if (real) {
+                thrown = t;
+            }
+            return this;
+        }
+        
+        /**
+         * Hand the message to the writer. Every claimed entry must be published.
+         */
+        void publish() {
+            if (real) {
+                published = sequence;
+                LOG.wake();
+            }
+        }
+    }
+    
+    private static final Entry NOOP = new Entry(false);
+    
+    private final Level threshold;
+    private final Entry[] ring;
+    private final int mask;
+    private final PrintStream out;
+    // the next sequence to claim, and the next one to write (everything before it is written).
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    // set while the writer is parked, waiting for something to be published.
+    private volatile boolean sleeping = false;
+    
+    private AsyncLog(Level threshold, int size, PrintStream out) {
+        this.threshold = threshold;
+        // round up to a power of 2.
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry(true);
+        }
+        this.mask = capacity - 1;
+        this.out = out;
+        writer = new Thread(this, "Camera Control Log Writer");
+        // We are a daemon thread, so if the JVM dies, we do too.
+        writer.setDaemon(true);
+        writer.start();
+        // but write what is left first.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush(TimeUnit.SECONDS.toNanos(1));
+            }
+        }, "Camera Control Log Flush"));
+    }
+    
+    static Entry debug(String format) {
+        return LOG.claim(Level.DEBUG, format);
+    }
+    
+    static Entry info(String format) {
+        return LOG.claim(Level.INFO, format);
+    }
+    
+    static Entry warn(String format) {
+        return LOG.claim(Level.WARN, format);
+    }
+    
+    static Entry error(String format) {
+        return LOG.claim(Level.ERROR, format);
+    }
+    
+    /**
+     * @return the number of messages dropped because the ring was full.
+     */
+    static long getDropped() {
+        return LOG.dropped.sum();
+    }
+    
+    private Entry claim(Level level, String format) {
+        if (level.compareTo(threshold) < 0) {
+            return NOOP;
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= ring.length) {
+                dropped.increment();
+                wake();
+                return NOOP;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        // the writer is done with this entry (the tail has passed it), it is ours until published.
+        Entry e = ring[(int)sequence & mask];
+        e.sequence = sequence;
+        e.level = level;
+        e.format = format;
+        e.count = 0;
+        e.numeric = 0;
+        e.thrown = null;
+        return e;
+    }
+    
+    private void wake() {
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+    
+    /**
+     * Wait (a while) for the writer to write everything claimed so far.
+     */
+    private void flush(long timeoutNanos) {
+        final long target = head.get();
+        final long end = System.nanoTime() + timeoutNanos;
+        while (tail < target && System.nanoTime() - end < 0) {
+            LockSupport.parkNanos(IDLE);
+        }
+        out.flush();
+    }
+    
+    @Override
+    public void run() {
+        final StringBuilder sb = new StringBuilder(256);
+        long reported = 0;
+        boolean written = false;
+        while (true) {
+            final long next = tail;
+            final Entry e = ring[(int)next & mask];
+            if (e.published != next) {
+                // nothing (more) to write yet.
+                long drops = dropped.sum();
+                if (drops != reported) {
+                    out.println("Log ring full, " + (drops - reported) + " messages dropped");
+                    reported = drops;
+                    written = true;
+                }
+                if (written) {
+                    out.flush();
+                    written = false;
+                }
+                // publish() and a drop only unpark us when we say we are sleeping, so look again after saying so.
+                sleeping = true;
+                if (e.published != next && dropped.sum() == reported) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            sb.setLength(0);
+            format(e, sb);
+            for (int i = 0; i < e.count; i++) {
+                // do not keep the arguments alive.
+                e.objects[i] = null;
+            }
+            e.thrown = null;
+            tail = next + 1;
+            try {
+                out.append(sb).append('\n');
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+            written = true;
+        }
+    }
+    
+    private static void format(Entry e, StringBuilder sb) {
+        if (e.level.compareTo(Level.WARN) >= 0) {
+            sb.append(e.level).append(": ");
+        }
+        final String format = e.format;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = format.indexOf("{}", from)) >= 0 && arg < e.count) {
+            sb.append(format, from, at);
+            if ((e.numeric & (1 << arg)) != 0) {
+                sb.append(e.numbers[arg]);
+            } else {
+                sb.append(e.objects[arg]);
+            }
+            arg++;
+            from = at + 2;
+        }
+        sb.append(format, from, format.length());
+        if (e.thrown != null) {
+            StringWriter trace = new StringWriter();
+            e.thrown.printStackTrace(new PrintWriter(trace));
+            sb.append('\n').append(trace.getBuffer(), 0, trace.getBuffer().length() - System.lineSeparator().length());
+        }
+    }
+    
+}
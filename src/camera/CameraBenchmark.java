@@ -0,0 +1,280 @@
+package camera;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the receive path, so changes to it can be measured rather than guessed at.
+ * 
+ * The network benchmarks run over loopback against a DummyCam in this JVM (with no errors,
+ * and no logging). The in-memory benchmarks feed prebuilt datagrams straight to the frame
+ * assembly, to separate its cost from the cost of the network and the threads.
+ * 
+ * Like JMH, each benchmark runs for a warm-up period first, and only then is measured. It
+ * reports operations per second, the latency percentiles of single operations, and the bytes
+ * allocated per operation (by every thread in the JVM except the DummyCam's).
+ * 
+ * <pre>
+ * java -cp bin camera.CameraBenchmark [-w warmupSeconds] [-i measureSeconds] [-window n] [-strategy s] [-port p] [benchmark ...]
+ * </pre>
+ * 
+ * The benchmarks are reset, image (the network ones), assemble and reorder (in-memory). The default is all of them.
+ */
+public class CameraBenchmark {
+    
+    private static final CameraCommands RESET = new CameraCommands("RESET", 1, 4);
+    private static final CameraCommands IMAGE = new CameraCommands("IMAGE", 480, 640);
+    
+    // the most latency samples kept per benchmark (operations after that are counted, but not sampled).
+    private static final int SAMPLES = 1 << 20;
+    
+    /**
+     * One operation of a benchmark.
+     */
+    private interface Op {
+        /**
+         * @return the number of bytes of data the operation produced, or -1 if it failed.
+         */
+        long run() throws Exception;
+    }
+    
+    private final long[] samples = new long[SAMPLES];
+    private final int warmup;
+    private final int measure;
+    private final long dummyThread;
+    
+    private CameraBenchmark(int warmup, int measure, long dummyThread) {
+        this.warmup = warmup;
+        this.measure = measure;
+        this.dummyThread = dummyThread;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int warmup = 5;
+        int measure = 10;
+        int window = 1;
+        int port = 12346;
+        WaitStrategy strategy = WaitStrategy.SELECT;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-w":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    measure = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-strategy":
+                    strategy = WaitStrategy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    names.add(args[i]);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList("reset", "image", "assemble", "reorder"));
+        }
+        
+        final DummyCam cam = new DummyCam(port);
+        cam.setErrorRate(0.0);
+        cam.setVerbose(false);
+        Thread dummy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cam.listen();
+                } catch (IOException e) {
+                    AsyncLog.error("DummyCam failed: {}").arg(e).publish();
+                }
+            }
+        }, "Benchmark DummyCam");
+        dummy.setDaemon(true);
+        dummy.start();
+        
+        CameraBenchmark bench = new CameraBenchmark(warmup, measure, dummy.getId());
+        try (final CameraControl control = new CameraControl(new InetSocketAddress("localhost", port),
+                CameraEventLoopGroup.getDefault(), window, strategy)) {
+            Map<String, Op> ops = new LinkedHashMap<>();
+            ops.put("reset", roundTrip(control, RESET));
+            ops.put("image", roundTrip(control, IMAGE));
+            ops.put("assemble", assemble(false));
+            ops.put("reorder", assemble(true));
+            
+            System.out.printf(Locale.ROOT, "# warm-up %ds, measure %ds, window %d, %s%n", warmup, measure, window, strategy);
+            System.out.printf(Locale.ROOT, "%-10s %10s %12s %10s %10s %10s %10s %10s %10s %12s %8s%n",
+                    "Benchmark", "ops", "ops/s", "MB/s", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)", "B/op", "fails");
+            for (String name : names) {
+                Op op = ops.get(name);
+                if (op == null) {
+                    System.out.println("Unknown benchmark " + name + ", expected one of " + ops.keySet());
+                    continue;
+                }
+                bench.run(name, op);
+            }
+        }
+    }
+    
+    /**
+     * Run one command on the camera, and wait for the result.
+     */
+    private static Op roundTrip(final CameraControl control, final CameraCommands cmd) {
+        return new Op() {
+            @Override
+            public long run() throws Exception {
+                try (Result result = control.waitForACK(1000, cmd)) {
+                    return result.isSuccess() ? result.getLength() : -1;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Assemble an image from prebuilt datagrams, the way the manager does: each one lands in the
+     * first missing slot, and is moved if it belongs somewhere else.
+     * @param shuffled deliver the datagrams in a (fixed) random order, rather than in order.
+     */
+    private static Op assemble(boolean shuffled) {
+        final int size = IMAGE.getDatagramSize();
+        final int count = IMAGE.getDatagramCount();
+        final ByteBuffer datagrams = ByteBuffer.allocateDirect(size * count);
+        for (int i = 0; i < count; i++) {
+            datagrams.put(i * size, (byte)(i / 100));
+            datagrams.put(i * size + 1, (byte)(i % 100));
+        }
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        if (shuffled) {
+            Random random = new Random(42);
+            for (int i = count - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+        final FramePool pool = FramePool.shared();
+        return new Op() {
+            @Override
+            public long run() {
+                FrameAssembler frame = new FrameAssembler(size, count, pool);
+                for (int sequence : order) {
+                    int landing = frame.getLanding();
+                    datagrams.limit((sequence + 1) * size).position(sequence * size);
+                    frame.landingSlot().put(datagrams);
+                    frame.place(IMAGE.getSequence(frame.getFrame(), landing * size));
+                }
+                long bytes = frame.isComplete() ? size * count : -1;
+                pool.release(frame.getFrame());
+                return bytes;
+            }
+        };
+    }
+    
+    private void run(String name, Op op) throws Exception {
+        // warm up, so the JIT has compiled the path before it is measured.
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        while (System.nanoTime() - end < 0) {
+            op.run();
+        }
+        
+        final long[] threads = measuredThreads();
+        final long allocatedBefore = allocated(threads);
+        final long start = System.nanoTime();
+        end = start + TimeUnit.SECONDS.toNanos(measure);
+        long ops = 0;
+        long fails = 0;
+        long bytes = 0;
+        long now = start;
+        while (now - end < 0) {
+            long result = op.run();
+            long done = System.nanoTime();
+            if (ops < SAMPLES) {
+                samples[(int)ops] = done - now;
+            }
+            ops++;
+            if (result < 0) {
+                fails++;
+            } else {
+                bytes += result;
+            }
+            now = done;
+        }
+        final double seconds = (now - start) / 1e9;
+        final long allocatedAfter = allocated(threads);
+        
+        long[] sorted = Arrays.copyOf(samples, (int)Math.min(ops, SAMPLES));
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%-10s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %12s %8d%n",
+                name, ops, ops / seconds, bytes / seconds / (1024 * 1024),
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                percentile(sorted, 1.0),
+                allocatedBefore < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", (allocatedAfter - allocatedBefore) / (double)ops),
+                fails);
+    }
+    
+    /**
+     * @return the latency (in microseconds) at the given fraction of the sorted samples.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000.0;
+    }
+    
+    /**
+     * @return the ids of every live thread, except the DummyCam's (its work is not the camera control's).
+     */
+    private long[] measuredThreads() {
+        long[] ids = ManagementFactory.getThreadMXBean().getAllThreadIds();
+        int n = 0;
+        for (long id : ids) {
+            if (id != dummyThread) {
+                ids[n++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+    
+    /**
+     * @return the total bytes ever allocated by the given threads, or -1 if the JVM cannot tell.
+     */
+    private static long allocated(long[] threads) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)mx;
+        if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : sun.getThreadAllocatedBytes(threads)) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+    
+}
@@ -2,6 +2,7 @@ package camera;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * This is a mock up of some potential commands.
@@ -9,23 +10,92 @@ import java.nio.charset.StandardCharsets;
  * use your version of the CameraCommands.
  * 
  * It is useful to know how many datagrams to expect, and how large they will be.
+ * 
+ * Commands can also be sent tagged, as "&lt;tag&gt;:&lt;command&gt;". A camera that supports
+ * tags echoes the tag back as a 2-byte (big-endian) prefix on every response datagram,
+ * which allows several commands to be outstanding at once.
+ * 
+ * A camera that supports it will also re-send selected datagrams of the last response
+ * (for the same tag) when sent "RESEND a-b,c-d", where a-b are inclusive ranges of
+ * sequence numbers.
  */
 public class CameraCommands {
     
+    /**
+     * The number of bytes the tag adds to the front of each response datagram.
+     */
+    static final int TAG_LENGTH = 2;
+    
+    /**
+     * The largest tag value that can be echoed back.
+     */
+    static final int MAX_TAG = 0xffff;
+    
+    private final String name;
     private final byte[] command;
     private final int datagramsize;
     private final int datagramcount;
 
     public CameraCommands(String command, int expectcount, int expectsize) {
+        this.name = command;
         this.command = command.getBytes(StandardCharsets.US_ASCII);
         datagramcount = expectcount;
         datagramsize = expectsize;
     }
 
+    /**
+     * Create a request to re-send some datagrams of the previous response.
+     * @param ranges the inclusive ranges of datagram sequence numbers, like "3-7,10-10".
+     * @return the RESEND command (which itself expects nothing specific back).
+     */
+    static CameraCommands resend(String ranges) {
+        return new CameraCommands("RESEND " + ranges, 0, 0);
+    }
+
     ByteBuffer getCommand() {
         return ByteBuffer.wrap(command);
     }
     
+    ByteBuffer getCommand(int tag) {
+        byte[] prefix = (tag + ":").getBytes(StandardCharsets.US_ASCII);
+        byte[] tagged = Arrays.copyOf(prefix, prefix.length + command.length);
+        System.arraycopy(command, 0, tagged, prefix.length, command.length);
+        return ByteBuffer.wrap(tagged);
+    }
+    
+    /**
+     * Get the sequence number (row index) of a response datagram.
+     * 
+     * Multi-datagram responses carry their index in the first two bytes of each datagram,
+     * as index / 100 and index % 100. A single-datagram response is always sequence 0.
+     * 
+     * @param datagram the datagram data.
+     * @param offset the index in the buffer at which the datagram payload starts.
+     * @return the sequence number.
+     */
+    int getSequence(ByteBuffer datagram, int offset) {
+        if (datagramcount == 1) {
+            return 0;
+        }
+        return (datagram.get(offset) & 0xff) * 100 + (datagram.get(offset + 1) & 0xff);
+    }
+    
+    /**
+     * Get the tag echoed at the start of a tagged response datagram.
+     * @param datagram the datagram (at least TAG_LENGTH bytes from index 0).
+     * @return the tag.
+     */
+    static int getTag(ByteBuffer datagram) {
+        return datagram.getShort(0) & MAX_TAG;
+    }
+    
+    /**
+     * @return the command text (the type of command, which statistics are kept by).
+     */
+    public String getName() {
+        return name;
+    }
+    
     public int getDatagramSize() {
         return datagramsize;
     }
@@ -36,7 +106,7 @@ public class CameraCommands {
     
     @Override
     public String toString() {
-        return String.format("Command %s expect %d x %dBytes", new String(command, StandardCharsets.US_ASCII), datagramcount, datagramsize);
+        return String.format("Command %s expect %d x %dBytes", name, datagramcount, datagramsize);
     }
 
 }
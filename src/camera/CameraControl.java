@@ -1,35 +1,95 @@
 package camera;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
 
 /**
  * This class manages a single remote camera at the far end of a datagram/UDP connection.
  * 
  * The class will invoke a command, and return a result, within a given timeout.
  * 
- * The class manages a separate thread that coordinates all communication with the
- * remote camera, allowing only one command at a time.
+ * All communication with the remote camera is coordinated by one thread of a
+ * (shared) CameraEventLoopGroup, or by a dedicated thread (see WaitStrategy), allowing
+ * only one command at a time, or a small window of tagged commands for cameras that support it.
  * 
  */
-public class CameraControl {
+public class CameraControl implements Closeable {
+
+    // The size of the low-level buffer used in the socket, to start with.
+    // This needs to be large enough to contain an entire response.... if the camera sends it really fast.
+    // It grows to fit the largest command sent (times the window), and again if the kernel drops datagrams.
+    private static final int SOCKETBUFFER = 1024 * 512;
+    
+    // the kernel charges each datagram in the receive buffer for its bookkeeping as well as its data.
+    private static final int DATAGRAMOVERHEAD = 512;
+    
+    // never ask for more than this, whatever the commands or drops suggest.
+    private static final int MAXSOCKETBUFFER = 64 * 1024 * 1024;
 
-    // Set the size of the low-level buffer used in the socket.
-    // This needs to be large enough to contain an entire image.... if the camera sends it really fast.
-    // that would be 480 packets of 640 bytes, plus some head-room, or 300KB plus some. Be generous at 512KB
-    private static final Integer SOCKETBUFFER = 1024 * 512;
+    // the most commands that can be outstanding on one camera (bounded by the queue size).
+    private static final int MAXWINDOW = 32;
+    
+    // how long to wait, with nothing arriving, before asking for missing datagrams again.
+    // This is generous compared to the time between datagrams on a LAN, but well short of a timeout.
+    private static final int RESENDGAP = 20;
+    
+    // keep each RESEND request to a sensible size, the rest can be asked for in the next round.
+    private static final int MAXRESENDRANGES = 32;
+    
+    // the size the scratch buffer starts at, it grows for bigger datagrams.
+    private static final int SCRATCH = 2048;
 
     private final SocketAddress remote;
+    // the address, as it appears in JMX and JFR.
+    private final String remoteName;
     private final BlockingDeque<Task> queue = new LinkedBlockingDeque<>(32);
-    private final ByteBuffer buffer = ByteBuffer.allocate(2048);
+    private final WaitStrategy strategy;
+    // the shared loop that drives the manager, or the thread dedicated to it (depending on the strategy).
+    private final CameraEventLoopGroup.EventLoop loop;
+    private final Thread thread;
+    private final Dedicated dedicated;
+    private final Manager manager;
+    private final DeadlineTimer timer = DeadlineTimer.shared();
+    private volatile int resendGap = RESENDGAP;
+    private volatile int queueTimeout = 0;
+    // set when the camera is closed (or the loop driving it is), from then on every command fails.
+    private volatile boolean closed = false;
+    // latencies for each type of command (by name).
+    private final ConcurrentHashMap<String, CommandStats> stats = new ConcurrentHashMap<>();
+    // counters of what happens on the wire, published over JMX.
+    private final Monitor monitor = new Monitor();
+    private final ObjectName monitorName;
+    private final Function<String, CommandStats> newStats = new Function<String, CommandStats>() {
+        @Override
+        public CommandStats apply(String name) {
+            return new CommandStats(name);
+        }
+    };
     
     // special IOException that indicates particular problems encountered. 
     private static final class ProtocolException extends IOException {
@@ -53,7 +113,6 @@ public class CameraControl {
             this.sofar = sofar;
         }
         
-        @SuppressWarnings("unused")
         public byte[] getSoFar() {
             return sofar;
         }
@@ -61,198 +120,1188 @@ public class CameraControl {
     }
     
     /**
-     * Details about a particular task to run on the camera. This is queued, and then used
-     * as the synchronization point to track the manager-thread actions. 
+     * Details about a particular task to run on the camera. This is queued, and the manager
+     * completes the future once the camera has responded (or failed to), or for a streamed
+     * command, passes each row to the stream as it arrives.
      */
-    private final class Task {
+    private static final class Task {
         
         private final CameraCommands cmd;
         private final int timeout;
-        private boolean complete = false;
-        private Result result = null;
+        private final CompletableFuture<Result> future = new CompletableFuture<>();
+        // where the rows go as they arrive (null if the result is wanted as a whole).
+        private final RowStream stream;
+        // where this type of command's latencies are recorded.
+        private final CommandStats stats;
+        private final long queuedAt = System.nanoTime();
+        // expires the task if it waits in the queue for too long (null if it can wait forever).
+        private DeadlineTimer.Timeout expiry = null;
         
-        public Task(CameraCommands cmd, int timeout) {
+        public Task(CameraCommands cmd, int timeout, RowStream stream, CommandStats stats) {
             this.cmd = cmd;
             this.timeout = timeout;
+            this.stream = stream;
+            this.stats = stats;
+        }
+        
+        /**
+         * The task is over without a complete response (called on the managing thread).
+         */
+        void fail(ProtocolException e) {
+            if (stream != null) {
+                stream.finish(e);
+            } else {
+                future.complete(new Result(e.getSoFar(), e));
+            }
         }
 
+    }
+    
+    /**
+     * The progress of one command that has been sent to the camera.
+     */
+    private static final class Transfer {
+        
+        private final Task task;
+        private final int tag;
+        private final FrameAssembler frame;
+        // all times are System.nanoTime() based.
+        private final long startedAt;
+        private final long timeoutAt;
+        private int packetCount = 0;
+        private int resendCount = 0;
+        private boolean timedOut = false;
+        // when the last new datagram arrived.
+        private long lastDatagram;
+        // the last time a datagram arrived, or we asked for some.
+        private long lastActivity;
+        // how long to stay quiet after that before asking for missing datagrams (0 for never).
+        private long quiet = 0L;
+        // wakes the manager for the deadline, or to ask for missing datagrams.
+        private final DeadlineTimer.Timeout wakeup;
+        
+        Transfer(Task task, int tag, long startedAt, Runnable wake) {
+            this.task = task;
+            this.tag = tag;
+            this.frame = new FrameAssembler(task.cmd.getDatagramSize(), task.cmd.getDatagramCount(), FramePool.shared());
+            this.startedAt = startedAt;
+            this.timeoutAt = startedAt + TimeUnit.MILLISECONDS.toNanos(task.timeout);
+            this.lastActivity = startedAt;
+            this.wakeup = new DeadlineTimer.Timeout(wake);
+        }
+        
         /**
-         * queue a command. Once the command is submitted to the camera, it needs to complete within the given timeout
-         * @return The result (may be a fail-result)
-         * @throws InterruptedException if the thread is interrupted.
+         * Something happened, stay quiet for a while before asking for missing datagrams.
+         * This is called for every datagram, so it only records the time, rather than re-scheduling the wakeup
+         * (unless the quiet interval shrank, see received).
          */
-        public Result invoke() throws InterruptedException {
-            // push the job to the queue. The manager thread will pull.
-            queue.add(this);
-            
-            // wait for the manager to notify of success.
-            // a more sophisticated controller could make this an async wait.
-            // the purpose though is to force all comms with the camera to be
-            // synchronous, and on a single 'controlled' thread.
-            synchronized (this) {
-                while (!complete) {
-                    this.wait();
-                }
+        void activity(long now, long quietNanos) {
+            lastActivity = now;
+            quiet = quietNanos;
+        }
+        
+        boolean resendDue(long now) {
+            return quiet > 0 && now - (lastActivity + quiet) >= 0;
+        }
+        
+        /**
+         * @return the next time the manager needs to look at this transfer.
+         */
+        long nextWake() {
+            if (quiet > 0 && (lastActivity + quiet) - timeoutAt < 0) {
+                return lastActivity + quiet;
             }
-            return result;
+            return timeoutAt;
+        }
+        
+        byte[] soFar() {
+            return frame.soFar();
         }
     }
     
     /**
-     * The guts of the thread that communicates with the camera.
+     * The state machine that communicates with the camera.
+     * 
+     * All methods are called on the one thread that drives this camera (a shared event loop, or a
+     * thread dedicated to it, depending on the WaitStrategy). Up to 'window'
+     * commands are in progress at any time. With a window of 1 the commands are sent as-is,
+     * and only one command is ever in progress. With a larger window the commands are tagged,
+     * and responses are matched to commands by the tag the camera echoes back.
      */
-    private final class Manager implements Runnable {
+    private final class Manager implements CameraEventLoopGroup.Handler, Runnable {
         
         private final DatagramChannel channel;
-        // use NIO which is non-blocking.
-        // this allows for better timeout management.
-        private final Selector selector;
         
-        Manager() throws IOException {
-            selector = Selector.open();
-
+        // checks deadlines on the managing thread, and the timer task that asks for that.
+        private final Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkDeadlines();
+                } catch (RuntimeException e) {
+                    onFailed(e);
+                }
+            }
+        };
+        private final Runnable wake = new Runnable() {
+            @Override
+            public void run() {
+                execute(check);
+            }
+        };
+        
+        // the commands in progress, free slots are null.
+        private final Transfer[] inflight;
+        private final boolean tagged;
+        private int active = 0;
+        private int nextTag = 0;
+        // the largest datagram any command in progress expects.
+        private int maxDatagramSize = 0;
+        // scratch space, for stale data, and datagrams that cannot be read straight in to a frame. It grows to
+        // hold the largest datagram expected (and its tag, and a byte more, so a longer one is seen as too long).
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(SCRATCH);
+        // the receive buffer asked for, and what the OS actually granted (which may be less, or double).
+        private volatile int receiveBuffer = 0;
+        private volatile int receiveBufferGranted = 0;
+        // set when the size was chosen by setReceiveBufferSize(), rather than sized automatically.
+        private volatile boolean receiveBufferFixed = false;
+        private final int localPort;
+        // grows the receive buffer, after the kernel dropped datagrams.
+        private final Runnable grow = new Runnable() {
+            @Override
+            public void run() {
+                setReceiveBuffer(2L * receiveBuffer);
+            }
+        };
+        // the command the last tagged datagram belonged to.
+        private Transfer last = null;
+        // used to read the tag, and the datagram (and anything too big for the slot), in one system call.
+        private final ByteBuffer header = ByteBuffer.allocateDirect(CameraCommands.TAG_LENGTH);
+        private final ByteBuffer[] scatter = new ByteBuffer[3];
+        private final ByteBuffer[] overflow = new ByteBuffer[2];
+        // the staging area for the BLOCKING strategy, which has to receive in to an array (it grows with the buffer).
+        private byte[] staging;
+        private DatagramPacket packet;
+        private ByteBuffer stagingBuffer;
+        
+        Manager(int window) throws IOException {
+            inflight = new Transfer[window];
+            tagged = window > 1;
+            if (strategy == WaitStrategy.BLOCKING) {
+                stage(buffer.capacity());
+            }
+            
             channel = DatagramChannel.open();
-            // use non-blocking IO.
-            channel.configureBlocking(false);
+            // use blocking IO only when the strategy needs it, otherwise the channel is polled, or registered on a shared selector.
+            channel.configureBlocking(strategy == WaitStrategy.BLOCKING);
             // Set a large receive buffer for the socket
-            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKETBUFFER);
-            channel.register(selector, SelectionKey.OP_READ);
+            setReceiveBuffer(SOCKETBUFFER);
             // actually establish the connection.
             channel.connect(remote);
+            localPort = ((InetSocketAddress)channel.getLocalAddress()).getPort();
+        }
+        
+        /**
+         * Ask for a bigger socket receive buffer (never a smaller one), and check what the OS granted.
+         * Linux silently caps the request at net.core.rmem_max.
+         */
+        private void setReceiveBuffer(long bytes) {
+            int size = (int)Math.min(bytes, MAXSOCKETBUFFER);
+            if (size <= receiveBuffer || receiveBufferFixed) {
+                return;
+            }
+            applyReceiveBuffer(size);
+        }
+        
+        /**
+         * Fix the receive buffer at a size (or go back to sizing it automatically, with 0).
+         */
+        private void fixReceiveBuffer(int size) {
+            receiveBufferFixed = size > 0;
+            applyReceiveBuffer(receiveBufferFixed ? size : SOCKETBUFFER);
+        }
+        
+        private void applyReceiveBuffer(int size) {
+            try {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+                receiveBuffer = size;
+                receiveBufferGranted = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+            } catch (IOException e) {
+                AsyncLog.warn("Unable to set the receive buffer for {} to {} bytes: {}").arg(remoteName).arg(size).arg(e).publish();
+                return;
+            }
+            if (receiveBufferGranted < size) {
+                AsyncLog.warn("Receive buffer for {}: asked for {} bytes, granted {} (raise net.core.rmem_max)")
+                        .arg(remoteName).arg(size).arg(receiveBufferGranted).publish();
+            }
+        }
+        
+        /**
+         * Make sure the receive buffer can hold a whole response to the command, for each command in the window.
+         */
+        private void fitReceiveBuffer(CameraCommands cmd) {
+            long datagram = cmd.getDatagramSize() + (tagged ? CameraCommands.TAG_LENGTH : 0) + DATAGRAMOVERHEAD;
+            long needed = datagram * cmd.getDatagramCount() * inflight.length;
+            if (needed > receiveBuffer) {
+                setReceiveBuffer(needed);
+            }
         }
         
+        /**
+         * Called on the event loop when a new task has been queued.
+         */
         @Override
         public void run() {
-            while (true) {
-                // run forever. We are a daemon thread, so if the JVM dies, we do too.
-                try {
-                    Task t = queue.take();
-                    Result result = null;
-                    if (t != null) {
-                        try {
-                            result = processTask(t.cmd, t.timeout);
-                        } catch (ProtocolException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    synchronized(t) {
-                        t.result = result;
-                        t.complete = true;
-                        t.notifyAll();
-                    }
-                } catch (InterruptedException e) {
-                    //Thread.currentThread().interrupt();
-                    // clear the interrupt, and keep going.
-                    log("Manager Thread interrupted.... and interrupt ignored.");
+            try {
+                startNext();
+            } catch (RuntimeException e) {
+                onFailed(e);
+            }
+        }
+        
+        /**
+         * Something went badly wrong on the managing thread (a bug), so the camera's state cannot be trusted:
+         * stop it, rather than leave its commands waiting forever.
+         */
+        @Override
+        public void onFailed(RuntimeException e) {
+            AsyncLog.error("Camera {} failed, it can no longer be used: {}").arg(remoteName).arg(e).publish();
+            stop("Failed: " + e);
+        }
+        
+        /**
+         * The loop driving this camera has been closed.
+         */
+        @Override
+        public void onClosed() {
+            stop("Event loop closed");
+        }
+        
+        /**
+         * The camera can no longer be used: fail the commands in progress, and those still queued, so that
+         * nothing waits for them forever.
+         */
+        void stop(String reason) {
+            closed = true;
+            for (Transfer x : inflight) {
+                if (x != null) {
+                    fail(x, new ProtocolException(x.soFar(), reason + " after transfer " + x.packetCount));
                 }
             }
+            rejectQueued(reason);
+        }
+        
+        /**
+         * While there is room in the window, send the next queued command (if any).
+         */
+        private void startNext() {
+            if (closed) {
+                // queued as the camera was closed.
+                rejectQueued("Closed");
+                return;
+            }
+            Task t;
+            while (active < inflight.length && (t = queue.poll()) != null) {
+                begin(t);
+            }
         }
 
-        private Result processTask(final CameraCommands cmd, final long timeout) throws ProtocolException {
+        private void begin(final Task t) {
+            final int tag = tagged ? nextTag : 0;
+            nextTag = (nextTag + 1) & CameraCommands.MAX_TAG;
             
-            final int getsize = cmd.getDatagramSize();
-            final int getcount = cmd.getDatagramCount();
-            final byte[] data = new byte[getsize * getcount];
-            int byteCount = 0;
+            if (t.expiry != null) {
+                timer.cancel(t.expiry);
+            }
+            final long now = System.nanoTime();
+            t.stats.getQueueWait().record(now - t.queuedAt);
+            CameraEvents.dequeued(remoteName, t.cmd, tag, now - t.queuedAt);
+            final Transfer x = new Transfer(t, tag, now, wake);
+            for (int i = 0; i < inflight.length; i++) {
+                if (inflight[i] == null) {
+                    inflight[i] = x;
+                    break;
+                }
+            }
+            active++;
+            maxDatagramSize = Math.max(maxDatagramSize, t.cmd.getDatagramSize());
+            fitScratch();
+            fitReceiveBuffer(t.cmd);
+            if (t.stream != null) {
+                t.stream.attach(x.frame.getFrame(), t.cmd.getDatagramSize(), t.cmd.getDatagramCount());
+            }
             
             try {
-                do {
-                    // clear any pending crap from the queue.
-                    // this could be data from previously failed commands.
-                    buffer.clear();
-                    channel.read(buffer);
-                } while (buffer.position() > 0);
+                if (active == 1) {
+                    drainStale();
+                }
                 
                 // send the command
-                channel.send(cmd.getCommand(), remote);
-
-                // set the limit for how long we will wait to get all the data.
-                final long timeoutAt = System.currentTimeMillis() + timeout;
-                long now = 0L;
+                int sent = channel.send(tagged ? t.cmd.getCommand(tag) : t.cmd.getCommand(), remote);
+                CameraEvents.sent(remoteName, t.cmd, tag, sent);
+                x.activity(now, quietNanos());
+                timer.schedule(x.wakeup, x.nextWake() - now);
                 
-                // reset the buffer to get the real data back
+            } catch (IOException e) {
+                fail(x, new ProtocolException(x.soFar(), "Exception : " + e, e));
+            }
+        }
+        
+        /**
+         * Grow the scratch buffer (and the staging area), if a command in progress expects bigger datagrams than it holds, so no
+         * datagram is ever cut short by where it was read to.
+         */
+        private void fitScratch() {
+            final int size = maxDatagramSize + CameraCommands.TAG_LENGTH + 1;
+            if (size > buffer.capacity()) {
+                buffer = ByteBuffer.allocateDirect(size);
+                if (staging != null) {
+                    stage(size);
+                }
+            }
+        }
+        
+        private void stage(int size) {
+            staging = new byte[size];
+            packet = new DatagramPacket(staging, size);
+            stagingBuffer = ByteBuffer.wrap(staging);
+        }
+        
+        /**
+         * clear any pending crap from the queue.
+         * this could be data from previously failed commands.
+         * Only safe when nothing else is in progress.
+         */
+        private void drainStale() throws IOException {
+            final boolean blocking = channel.isBlocking();
+            if (blocking) {
+                channel.configureBlocking(false);
+            }
+            do {
                 buffer.clear();
-                int packetCount = 0;
-                
-                // note the tricky now = System.currentTimeMillis() which sets the now value, and compares it as well.
-                while (byteCount < data.length && (now = System.currentTimeMillis()) < timeoutAt) {
-                    
-                    // do a blind select on the channel....
-                    // this will wait up to the timeoutAt for data to come available.
-                    // this is a time-limited blocking operation. It completes quickly if there is data.
-                    
-                    if (selector.select(timeoutAt - now) == 0) {
-                        log("Zero-selector encountered"); // normally indicates a problem (like a timeout)
-                        continue;
+                channel.read(buffer);
+                if (buffer.position() > 0) {
+                    countDatagram(buffer.position());
+                    countStale(buffer.position());
+                }
+            } while (buffer.position() > 0);
+            // reset the buffer to get the real data back
+            buffer.clear();
+            if (blocking) {
+                channel.configureBlocking(true);
+            }
+        }
+        
+        private Transfer find(int tag) {
+            for (Transfer x : inflight) {
+                if (x != null && x.tag == tag) {
+                    return x;
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public void onReadable() {
+            try {
+                if (!receiveOne()) {
+                    // the selector woke us for nothing.
+                    monitor.increment(CameraCounters.Counter.ZERO_READS);
+                } else if (strategy == WaitStrategy.DRAIN) {
+                    while (receiveOne()) {
+                        // keep going until the socket is empty.
                     }
-                    // only one channel was registered, we can ignore the keys.
-                    selector.selectedKeys().clear();
-                    
-                    // read as much as we can from the channel, should be just one datagram
-                    int iostat = channel.read(buffer);
-                    if (iostat < 0) {
-                        throw new ProtocolException(Arrays.copyOf(data, byteCount), "Unexpected closed channel "
-                                + iostat + " expecting " + getsize + " for transfer " + packetCount);
+                }
+            } catch (IOException e) {
+                failAll("Exception : " + e, e);
+            }
+        }
+        
+        /**
+         * Read (and process) one datagram from the non-blocking channel.
+         * @return true if there was a datagram, false if there was nothing to read.
+         */
+        private boolean receiveOne() throws IOException {
+            if (active == 0) {
+                // nobody is waiting for this, it is left-over data from a failed command.
+                buffer.clear();
+                channel.read(buffer);
+                boolean any = buffer.position() > 0;
+                if (any) {
+                    countDatagram(buffer.position());
+                    countStale(buffer.position());
+                }
+                buffer.clear();
+                return any;
+            }
+            return tagged ? receiveTagged() : receive();
+        }
+        
+        /**
+         * Receive one datagram for the only command in progress.
+         * @return true if there was a datagram, false if there was nothing to read.
+         */
+        private boolean receive() throws IOException {
+            final Transfer x = inflight[0];
+            final FrameAssembler frame = x.frame;
+            final int landing = frame.getLanding();
+            
+            // read the datagram straight in to the slot it most likely belongs in.
+            // anything that does not fit goes to the buffer, so an over-sized datagram is not silently truncated.
+            buffer.clear();
+            overflow[0] = frame.landingSlot();
+            overflow[1] = buffer;
+            long iostat = channel.read(overflow);
+            if (iostat < 0) {
+                failAll("Unexpected closed channel " + iostat, null);
+                return false;
+            }
+            if (iostat == 0) {
+                return false;
+            }
+            countDatagram(iostat);
+            if (iostat != frame.getSize()) {
+                // we expect fixed size datagrams for each command, and there is no way to know where this one belongs.
+                // It is most likely a late datagram for an earlier command.
+                wrongSize(x, iostat);
+                return true;
+            }
+            
+            // move it if it arrived out of order (duplicates are ignored).
+            final int seq = x.task.cmd.getSequence(frame.getFrame(), landing * frame.getSize());
+            received(x, seq, frame.place(seq));
+            return true;
+        }
+        
+        /**
+         * Receive one tagged datagram, for any of the commands in progress.
+         * @return true if there was a datagram, false if there was nothing to read.
+         */
+        private boolean receiveTagged() throws IOException {
+            // datagrams tend to come in runs for the same command, so guess it is for the same one as last time.
+            Transfer guess = last != null && last == find(last.tag) ? last : firstActive();
+            // read straight in to that frame, as long as any of the expected datagrams will fit there.
+            final boolean direct = guess.frame.getSize() >= maxDatagramSize;
+            final int landing = guess.frame.getLanding();
+            
+            header.clear();
+            buffer.clear();
+            final long iostat;
+            if (direct) {
+                scatter[0] = header;
+                scatter[1] = guess.frame.landingSlot();
+                scatter[2] = buffer;
+                iostat = channel.read(scatter);
+            } else {
+                overflow[0] = header;
+                overflow[1] = buffer;
+                iostat = channel.read(overflow);
+            }
+            if (iostat < 0) {
+                failAll("Unexpected closed channel " + iostat, null);
+                return false;
+            }
+            if (iostat < CameraCommands.TAG_LENGTH) {
+                if (iostat > 0) {
+                    countDatagram(iostat);
+                    monitor.increment(CameraCounters.Counter.SHORT);
+                }
+                return iostat > 0;
+            }
+            countDatagram(iostat);
+            
+            final Transfer x = find(CameraCommands.getTag(header));
+            if (x == null) {
+                // a response to a command we are no longer waiting for.
+                countStale(iostat);
+                return true;
+            }
+            final FrameAssembler frame = x.frame;
+            if (iostat - CameraCommands.TAG_LENGTH != frame.getSize()) {
+                wrongSize(x, iostat - CameraCommands.TAG_LENGTH);
+                return true;
+            }
+            last = x;
+            
+            if (direct && x == guess) {
+                // the usual case, it is already in the right frame, maybe even in the right slot.
+                final int seq = x.task.cmd.getSequence(frame.getFrame(), landing * frame.getSize());
+                received(x, seq, frame.place(seq));
+                return true;
+            }
+            // it is in some other frame, or in the buffer, copy it to where it belongs.
+            if (!direct) {
+                buffer.flip();
+            }
+            ByteBuffer source = direct ? guess.frame.landingSlot() : buffer;
+            final int seq = x.task.cmd.getSequence(source, source.position());
+            received(x, seq, frame.accept(source, seq));
+            return true;
+        }
+        
+        /**
+         * Wait (in the blocking socket) for one datagram, and copy it in to its frame.
+         * @param waitMS how long to wait for.
+         */
+        private void receiveBlocking(long waitMS) throws IOException {
+            DatagramSocket socket = channel.socket();
+            // 0 means forever to SO_TIMEOUT, so always wait at least a little.
+            socket.setSoTimeout((int)Math.max(1L, Math.min(waitMS, Integer.MAX_VALUE)));
+            packet.setLength(staging.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            stagingBuffer.clear().limit(packet.getLength());
+            countDatagram(packet.getLength());
+            
+            final Transfer x;
+            if (tagged) {
+                x = stagingBuffer.remaining() < CameraCommands.TAG_LENGTH ? null : find(CameraCommands.getTag(stagingBuffer));
+            } else {
+                x = inflight[0];
+            }
+            if (x == null) {
+                // stale, or a response to a command we are no longer waiting for.
+                countStale(packet.getLength());
+                return;
+            }
+            if (tagged) {
+                stagingBuffer.position(CameraCommands.TAG_LENGTH);
+            }
+            if (stagingBuffer.remaining() != x.frame.getSize()) {
+                wrongSize(x, stagingBuffer.remaining());
+                return;
+            }
+            final int seq = x.task.cmd.getSequence(stagingBuffer, stagingBuffer.position());
+            received(x, seq, x.frame.accept(stagingBuffer, seq));
+        }
+        
+        
+        /**
+         * @return the bytes of new data received for a command so far.
+         */
+        private long bytes(Transfer x) {
+            return (long)x.packetCount * x.frame.getSize();
+        }
+        
+        private void countDatagram(long bytes) {
+            monitor.increment(CameraCounters.Counter.DATAGRAMS);
+            monitor.add(CameraCounters.Counter.BYTES, bytes);
+        }
+        
+        private void countStale(long bytes) {
+            monitor.add(CameraCounters.Counter.STALE_BYTES, bytes);
+        }
+        
+        /**
+         * A datagram of the wrong size arrived for a command (most likely a late one, for an earlier command).
+         */
+        private void wrongSize(Transfer x, long size) {
+            final boolean small = size < x.frame.getSize();
+            monitor.increment(small ? CameraCounters.Counter.SHORT : CameraCounters.Counter.LONG);
+            AsyncLog.warn("{} data obtained {} for xfer {} tag {}")
+                    .arg(small ? "Short" : "Long").arg(size).arg(x.packetCount).arg(x.tag).publish();
+        }
+        
+        private Transfer firstActive() {
+            for (Transfer x : inflight) {
+                if (x != null) {
+                    return x;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * A datagram has been processed for a command.
+         * @param x the command the datagram belonged to.
+         * @param seq the datagram's position in the frame.
+         * @param fresh whether it was new data.
+         */
+        private void received(Transfer x, int seq, boolean fresh) {
+            if (!fresh) {
+                monitor.increment(CameraCounters.Counter.DUPLICATES);
+                return;
+            }
+            final long now = System.nanoTime();
+            if (x.packetCount++ == 0) {
+                x.task.stats.getFirstDatagram().record(now - x.startedAt);
+                CameraEvents.firstDatagram(remoteName, x.task.cmd, x.tag, now - x.startedAt, x.frame.getSize());
+            } else {
+                CameraEvents.gap(remoteName, x.task.cmd, x.tag, now - x.lastDatagram, x.packetCount, bytes(x));
+            }
+            x.lastDatagram = now;
+            final long scheduled = x.wakeup.getDeadline();
+            x.activity(now, quietNanos());
+            if (x.nextWake() - scheduled < 0) {
+                // datagrams are arriving again after a RESEND, so the camera is alive: the backed-off wakeup
+                // would sit too long on a further gap, go back to the usual quiet interval.
+                timer.schedule(x.wakeup, x.nextWake() - now);
+            }
+            final RowStream stream = x.task.stream;
+            if (stream != null) {
+                stream.landed(seq);
+            }
+            
+            if (x.frame.isComplete()) {
+                x.task.stats.getComplete().record(now - x.startedAt);
+                monitor.increment(CameraCounters.Counter.COMPLETED);
+                CameraEvents.ended(remoteName, x.task.cmd, x.tag, "Complete", now - x.startedAt, x.packetCount, bytes(x), x.resendCount);
+                finish(x);
+                if (stream != null) {
+                    // the stream owns the (pooled) frame buffer from here on.
+                    stream.finish(null);
+                } else {
+                    // the result owns the (pooled) frame buffer from here on.
+                    x.task.future.complete(new Result(x.frame.getFrame(), FramePool.shared()));
+                }
+                startNext();
+            }
+        }
+        
+        /**
+         * @return the next time (System.nanoTime()) any transfer needs attention, or Long.MAX_VALUE if nothing is in progress.
+         */
+        private long nextWake() {
+            long next = Long.MAX_VALUE;
+            for (Transfer x : inflight) {
+                if (x != null && (next == Long.MAX_VALUE || x.nextWake() - next < 0)) {
+                    next = x.nextWake();
+                }
+            }
+            return next;
+        }
+        
+        /**
+         * The timer has woken us, fail what has timed out, and chase what has gone quiet.
+         */
+        private void checkDeadlines() {
+            final long now = System.nanoTime();
+            for (Transfer x : inflight) {
+                if (x == null) {
+                    continue;
+                }
+                if (now - x.timeoutAt >= 0) {
+                    long actualDuration = TimeUnit.NANOSECONDS.toMillis(now - x.startedAt);
+                    monitor.increment(CameraCounters.Counter.TIMEOUTS);
+                    x.timedOut = true;
+                    fail(x, new ProtocolException(x.soFar(), "Timeout after " + actualDuration + "ms after transfer " + x.packetCount
+                            + " and " + x.resendCount + " resend requests"));
+                    continue;
+                }
+                if (x.resendDue(now) && !requestResend(x, now)) {
+                    continue;
+                }
+                // still going, wake again when it needs attention (the wakeup may have been early
+                // for this transfer, if datagrams kept arriving since it was scheduled).
+                timer.schedule(x.wakeup, x.nextWake() - now);
+            }
+            startNext();
+        }
+        
+        /**
+         * Nothing has arrived for a while, ask the camera for just the datagrams we are missing.
+         * @return false if the request could not be sent, and the transfer has failed.
+         */
+        private boolean requestResend(Transfer x, long now) {
+            String ranges = x.frame.missingRanges(MAXRESENDRANGES);
+            CameraCommands resend = CameraCommands.resend(ranges);
+            try {
+                channel.send(tagged ? resend.getCommand(x.tag) : resend.getCommand(), remote);
+                x.resendCount++;
+                monitor.increment(CameraCounters.Counter.RESENDS);
+                // back off a little each time, so a dead camera is not flooded (until it sends again).
+                x.activity(now, quietNanos() * Math.min(x.resendCount + 1, 8));
+                return true;
+            } catch (IOException e) {
+                fail(x, new ProtocolException(x.soFar(), "Exception : " + e, e));
+                return false;
+            }
+        }
+        
+        private long quietNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(resendGap);
+        }
+        
+        private void failAll(String message, IOException cause) {
+            for (Transfer x : inflight) {
+                if (x != null) {
+                    fail(x, new ProtocolException(x.soFar(), message + " expecting " + x.task.cmd.getDatagramSize()
+                            + " for transfer " + x.packetCount, cause));
+                }
+            }
+            startNext();
+        }
+        
+        private void fail(Transfer x, ProtocolException e) {
+            AsyncLog.warn("{}").arg(e).publish();
+            monitor.increment(CameraCounters.Counter.FAILED);
+            CameraEvents.ended(remoteName, x.task.cmd, x.tag, x.timedOut ? "Timeout" : "Failed",
+                    System.nanoTime() - x.startedAt, x.packetCount, bytes(x), x.resendCount);
+            finish(x);
+            x.task.fail(e);
+            if (x.task.stream == null) {
+                // the data so far was copied, nothing else will ever use this frame.
+                FramePool.shared().release(x.frame.getFrame());
+            }
+        }
+        
+        /**
+         * The transfer is over, free its place in the window. The caller then completes the task,
+         * on the event loop. Dependent stages added with the non-async methods (and subscribers)
+         * will also run here, so they should be quick.
+         */
+        private void finish(Transfer x) {
+            timer.cancel(x.wakeup);
+            for (int i = 0; i < inflight.length; i++) {
+                if (inflight[i] == x) {
+                    inflight[i] = null;
+                    active--;
+                }
+            }
+            maxDatagramSize = 0;
+            for (Transfer other : inflight) {
+                if (other != null) {
+                    maxDatagramSize = Math.max(maxDatagramSize, other.task.cmd.getDatagramSize());
+                }
+            }
+            if (last == x) {
+                last = null;
+            }
+            buffer.clear();
+        }
+
+    }
+    
+    /**
+     * The counters for this camera, as published over JMX.
+     */
+    private final class Monitor extends CameraCounters implements CameraControlMXBean, UdpMonitor.Watched {
+        
+        @Override
+        public String getRemoteAddress() {
+            return remoteName;
+        }
+        
+        @Override
+        public int getLocalPort() {
+            return manager.localPort;
+        }
+        
+        @Override
+        public int getReceiveBufferRequested() {
+            return manager.receiveBuffer;
+        }
+        
+        @Override
+        public int getReceiveBufferGranted() {
+            return manager.receiveBufferGranted;
+        }
+        
+        @Override
+        public void onKernelDrops(long drops) {
+            add(Counter.KERNEL_DROPS, drops);
+            if (manager.receiveBuffer < MAXSOCKETBUFFER && !manager.receiveBufferFixed) {
+                AsyncLog.warn("The kernel dropped {} datagrams from {}, growing the receive buffer").arg(drops).arg(remoteName).publish();
+                execute(manager.grow);
+            }
+        }
+        
+        @Override
+        public String getWaitStrategy() {
+            return strategy.name();
+        }
+        
+        @Override
+        public int getWindow() {
+            return manager.inflight.length;
+        }
+        
+        @Override
+        public int getQueueDepth() {
+            return queue.size();
+        }
+    }
+    
+    /**
+     * Drives the Manager from a thread dedicated to this camera, for the strategies that do not use a selector.
+     */
+    private final class Dedicated implements Runnable {
+        
+        // spin this many times with nothing arriving before yielding (SPIN_YIELD).
+        private static final int SPINS = 1000;
+        
+        // work handed to this thread (new commands, expired deadlines).
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        
+        void execute(Runnable task) {
+            pending.add(task);
+            LockSupport.unpark(thread);
+        }
+        
+        @Override
+        public void run() {
+            int idle = 0;
+            while (manager.channel.isOpen()) {
+                try {
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
                     }
                     
-                    if (buffer.position() < getsize) {
-                        // we expect fixed size datagrams for each command. Let's hope the next datagram has the missing data (unlikely)
-                        log("Short data obtained " + iostat + " for xfer " + packetCount);
-                        continue;
+                    if (strategy == WaitStrategy.BLOCKING) {
+                        if (manager.active == 0) {
+                            if (pending.isEmpty()) {
+                                // nothing to do until a command is submitted (which unparks us).
+                                LockSupport.park(this);
+                            }
+                            continue;
+                        }
+                        // the socket cannot be woken by the timer, so only wait until the next deadline.
+                        long wait = manager.nextWake() - System.nanoTime();
+                        manager.receiveBlocking(TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+                    } else if (manager.receiveOne()) {
+                        idle = 0;
+                    } else if (strategy == WaitStrategy.SPIN_YIELD && ++idle > SPINS) {
+                        Thread.yield();
+                    } else {
+                        Thread.onSpinWait();
                     }
-                    // set the buffer to read mode.
-                    buffer.flip();
                     
-                    // read the datagram in to the next position in the output data.
-                    buffer.get(data, byteCount, iostat);
-                    byteCount += buffer.limit();
-                    buffer.clear();
-                    packetCount++;
-                }
-                
-                long actualDuration = System.currentTimeMillis() - (timeoutAt - timeout);
-                if (byteCount < data.length) {
-                    throw new ProtocolException(Arrays.copyOf(data, byteCount), "Timeout after " + actualDuration + "ms after transfer " + packetCount);
+                } catch (IOException e) {
+                    if (!manager.channel.isOpen()) {
+                        // closed.
+                        break;
+                    }
+                    manager.failAll("Exception : " + e, e);
+                } catch (RuntimeException e) {
+                    manager.onFailed(e);
+                    break;
                 }
-                
-                return new Result(data, null);
-                
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new ProtocolException(Arrays.copyOf(data, byteCount), "Exception : " + e.getMessage(), e);
             }
+            manager.stop("Closed");
         }
-
-
     }
     
     /**
-     * Establish a connection, and management thread to a remote camera.
+     * Establish a connection to a remote camera, managed by the default shared event loops.
      * @param remote the location of the camera
      * @throws IOException when the connection cannot be established.
      */
     public CameraControl(SocketAddress remote) throws IOException {
+        this(remote, CameraEventLoopGroup.getDefault());
+    }
+    
+    /**
+     * Establish a connection to a remote camera, managed by one of the loops in the given group.
+     * @param remote the location of the camera
+     * @param group the event loops to share with other cameras.
+     * @throws IOException when the connection cannot be established.
+     */
+    public CameraControl(SocketAddress remote, CameraEventLoopGroup group) throws IOException {
+        this(remote, group, 1);
+    }
+    
+    /**
+     * Establish a connection to a remote camera that allows several commands to be outstanding at once.
+     * 
+     * With a window larger than 1 the commands are sent tagged (see CameraCommands), and the camera
+     * must echo the tag back on each response datagram.
+     * 
+     * @param remote the location of the camera
+     * @param group the event loops to share with other cameras.
+     * @param window the maximum number of commands in progress at any time.
+     * @throws IOException when the connection cannot be established.
+     */
+    public CameraControl(SocketAddress remote, CameraEventLoopGroup group, int window) throws IOException {
+        this(remote, group, window, WaitStrategy.SELECT);
+    }
+    
+    /**
+     * Establish a connection to a remote camera, choosing how the managing thread waits for the camera.
+     * 
+     * @param remote the location of the camera
+     * @param group the event loops to share with other cameras (not used by the dedicated-thread strategies).
+     * @param window the maximum number of commands in progress at any time.
+     * @param strategy how to wait for datagrams.
+     * @throws IOException when the connection cannot be established.
+     */
+    public CameraControl(SocketAddress remote, CameraEventLoopGroup group, int window, WaitStrategy strategy) throws IOException {
+        if (window < 1 || window > MAXWINDOW) {
+            throw new IllegalArgumentException("Window must be from 1 to " + MAXWINDOW + ", not " + window);
+        }
         this.remote = remote;
-        Thread thread = new Thread(new Manager(), "Camera Control Manager Thread");
-        thread.setDaemon(true);
-        thread.start();
+        this.remoteName = remote.toString();
+        this.strategy = strategy;
+        this.manager = new Manager(window);
+        if (strategy.isDedicated()) {
+            this.loop = null;
+            this.dedicated = new Dedicated();
+            this.thread = new Thread(dedicated, "Camera Control Manager Thread");
+            // We are a daemon thread, so if the JVM dies, we do too.
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            this.thread = null;
+            this.dedicated = null;
+            this.loop = group.next();
+            try {
+                loop.register(manager.channel, manager);
+            } catch (IOException e) {
+                manager.channel.close();
+                throw e;
+            }
+        }
+        this.monitorName = CameraFleet.register(monitor, remoteName);
+        UdpMonitor.shared().register(monitor);
     }
     
-    private static void log(String message) {
-        // TODO -> Use a different logging system.
-        System.out.println(message);
+    /**
+     * Disconnect from the camera. Commands in progress, or still in the queue, complete with a fail-result
+     * (as do any submitted from now on).
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (loop != null) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    manager.stop("Closed");
+                }
+            });
+            loop.deregister(manager.channel);
+        }
+        manager.channel.close();
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        UdpMonitor.shared().unregister(monitor);
+        CameraFleet.unregister(monitor, monitorName);
+    }
+    
+    /**
+     * Fix the size of the socket receive buffer, rather than have it sized automatically (to hold the largest
+     * response, for each command in the window, and grown when the kernel drops datagrams). This is for
+     * finding out how the buffer size affects loss, a small buffer will drop datagrams.
+     * @param bytes the size to ask the OS for, or 0 to go back to sizing it automatically.
+     */
+    public void setReceiveBufferSize(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Receive buffer size cannot be negative, not " + bytes);
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                manager.fixReceiveBuffer(bytes);
+            }
+        });
+    }
+    
+    /**
+     * Set how long the manager waits, with no datagrams arriving, before asking the camera
+     * to re-send only the datagrams that are missing (RESEND, see CameraCommands).
+     * @param gapMS the quiet time in milliseconds, or 0 to never ask (wait for the timeout instead).
+     */
+    public void setResendGap(int gapMS) {
+        if (gapMS < 0) {
+            throw new IllegalArgumentException("Resend gap cannot be negative: " + gapMS);
+        }
+        this.resendGap = gapMS;
+    }
+
+    /**
+     * Set how long a command may wait in the queue (behind other commands) before it is sent.
+     * Commands that wait longer are completed with a fail-result, without being sent.
+     * @param timeoutMS the longest wait in milliseconds, or 0 to wait forever. Applies to commands submitted after this call.
+     */
+    public void setQueueTimeout(int timeoutMS) {
+        if (timeoutMS < 0) {
+            throw new IllegalArgumentException("Queue timeout cannot be negative: " + timeoutMS);
+        }
+        this.queueTimeout = timeoutMS;
+    }
+
+    /**
+     * Queue a command to run on the remote camera, without waiting for it.
+     * 
+     * Once the command is sent to the camera, it needs to complete within the given timeout.
+     * The returned future is completed on the managing thread, with a fail-result if the
+     * camera did not respond properly. The Result should be released when it is no longer needed.
+     * 
+     * @param cmd the command.
+     * @param timeoutMS the time limit.
+     * @return the future result from the camera.
+     * @throws IllegalStateException if too many commands are already queued for this camera.
+     */
+    public CompletableFuture<Result> submit(CameraCommands cmd, int timeoutMS) {
+        final Task t = new Task(cmd, timeoutMS, null, stats(cmd));
+        enqueue(t);
+        return t.future;
+    }
+    
+    /**
+     * Run a command on the remote camera, delivering each row (datagram) of the response as soon
+     * as it arrives, rather than waiting for the whole response.
+     * 
+     * The command is queued when the (single) subscriber subscribes. Rows are delivered in the
+     * order they arrive (see Row.getIndex() for where each one belongs), only as fast as the subscriber
+     * requests them. Rows that arrive sooner wait in the frame, they are not dropped, and the camera is
+     * not slowed down. The stream completes once every row has been delivered, or fails (with
+     * the rows not yet delivered dropped) if the camera did not respond properly in time.
+     * 
+     * The row data is not copied, it is only valid until onComplete (or onError) returns. Signals are
+     * delivered on the managing thread, or on a thread calling request(), so they should be quick.
+     * 
+     * @param cmd the command.
+     * @param timeoutMS the time limit, once the command is sent.
+     * @return the rows of the response, for one subscriber.
+     */
+    public Flow.Publisher<Row> stream(final CameraCommands cmd, final int timeoutMS) {
+        return new RowStream(new Consumer<RowStream>() {
+            @Override
+            public void accept(RowStream stream) {
+                enqueue(new Task(cmd, timeoutMS, stream, stats(cmd)));
+            }
+        });
+    }
+    
+    /**
+     * @return where to record the latencies of this type of command.
+     */
+    private CommandStats stats(CameraCommands cmd) {
+        CommandStats s = stats.get(cmd.getName());
+        return s != null ? s : stats.computeIfAbsent(cmd.getName(), newStats);
+    }
+    
+    /**
+     * Get the latencies of one type of command on this camera, for example to take a snapshot
+     * (and reset it) periodically. This does not interfere with the managing thread.
+     * @param cmd the type of command (commands with the same name share their statistics).
+     * @return the latencies for that type of command (empty if none have run yet).
+     */
+    public CommandStats getCommandStats(CameraCommands cmd) {
+        return stats(cmd);
+    }
+    
+    /**
+     * @return the latencies of every type of command that has been submitted to this camera.
+     */
+    public Collection<CommandStats> getCommandStats() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+    
+    /**
+     * Push the job to the queue. The manager will pull it on the event loop.
+     * @throws IllegalStateException if too many commands are already queued for this camera.
+     */
+    private void enqueue(final Task t) {
+        final int expireMS = queueTimeout;
+        if (expireMS > 0) {
+            t.expiry = new DeadlineTimer.Timeout(new Runnable() {
+                @Override
+                public void run() {
+                    expire(t);
+                }
+            });
+        }
+        if (!queue.offer(t)) {
+            throw new IllegalStateException("Too many commands queued for " + remoteName);
+        }
+        if (t.expiry != null) {
+            // only once accepted, so a full queue leaves no expiry behind. If the manager has taken the
+            // task already, the expiry finds it gone from the queue and does nothing.
+            timer.schedule(t.expiry, TimeUnit.MILLISECONDS.toNanos(expireMS));
+        }
+        monitor.increment(CameraCounters.Counter.SUBMITTED);
+        CameraEvents.enqueued(remoteName, t.cmd, queue.size());
+        if (closed && queue.remove(t)) {
+            // the camera was closed as it was submitted, its manager may never look at the queue again.
+            reject(t, "Closed");
+            return;
+        }
+        execute(manager);
+    }
+    
+    /**
+     * Fail the commands still in the queue, which will never be sent.
+     */
+    private void rejectQueued(String reason) {
+        Task t;
+        while ((t = queue.poll()) != null) {
+            reject(t, reason);
+        }
+    }
+    
+    private void reject(Task t, String reason) {
+        if (t.expiry != null) {
+            timer.cancel(t.expiry);
+        }
+        monitor.increment(CameraCounters.Counter.FAILED);
+        CameraEvents.ended(remoteName, t.cmd, -1, reason, 0L, 0, 0L, 0);
+        t.fail(new ProtocolException(new byte[0], reason + ", never sent"));
+    }
+    
+    /**
+     * A task has waited in the queue for too long (called on the timer thread).
+     */
+    private void expire(final Task t) {
+        if (!queue.remove(t)) {
+            // the manager took it just in time.
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t.queuedAt);
+                monitor.increment(CameraCounters.Counter.EXPIRED);
+                monitor.increment(CameraCounters.Counter.FAILED);
+                CameraEvents.ended(remoteName, t.cmd, -1, "Expired", 0L, 0, 0L, 0);
+                t.fail(new ProtocolException(new byte[0], "Expired after " + waited + "ms in the queue, never sent"));
+            }
+        });
+    }
+    
+    /**
+     * @return the thread that manages this camera (it may be shared with other cameras).
+     */
+    Thread getManagerThread() {
+        return loop != null ? loop.getThread() : thread;
+    }
+    
+    /**
+     * Run some logic on the thread that manages this camera.
+     */
+    private void execute(Runnable task) {
+        if (loop != null) {
+            loop.execute(task);
+        } else {
+            dedicated.execute(task);
+        }
     }
 
     /**
      * Run a command, within a given time limit, on the remote camera.
+     *
+     * The Result holds a pooled frame buffer, so release it (or use it in a try-with-resources block)
+     * once done with the data. A Result that is never released is only garbage collected, and its
+     * buffer is not reused: the pool has to allocate a new one (run with -Dcamera.pool.debug=true to
+     * find where such results come from). Call getData() first to keep the data after releasing.
+     *
      * @param waitMS the time limit.
      * @param cmd the command.
-     * @return the resulting data from the camera.
+     * @return the resulting data from the camera (may be a fail-result), to be released by the caller.
      * @throws InterruptedException if we were interrupted.
      */
     public Result waitForACK(int waitMS, CameraCommands cmd) throws InterruptedException {
-        Task t = new Task(cmd, waitMS);
-        return t.invoke();
+        try {
+            return submit(cmd, waitMS).get();
+        } catch (ExecutionException e) {
+            // the manager never completes exceptionally, it always produces a Result.
+            throw new IllegalStateException("Unexpected failure running " + cmd, e.getCause());
+        }
     }
 
 }
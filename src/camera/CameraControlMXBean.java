@@ -0,0 +1,44 @@
+package camera;
+
+/**
+ * The JMX view of one camera. Each CameraControl registers one of these (named
+ * camera:type=CameraControl,name="&lt;remote address&gt;#&lt;n&gt;") until it is closed.
+ */
+public interface CameraControlMXBean extends CameraStatistics {
+    
+    /**
+     * @return the address of the camera.
+     */
+    String getRemoteAddress();
+    
+    /**
+     * @return the way the managing thread waits for datagrams.
+     */
+    String getWaitStrategy();
+    
+    /**
+     * @return the most commands that can be in progress at once.
+     */
+    int getWindow();
+    
+    /**
+     * @return the number of commands waiting to be sent.
+     */
+    int getQueueDepth();
+    
+    /**
+     * @return the local UDP port of the connection to the camera.
+     */
+    int getLocalPort();
+    
+    /**
+     * @return the socket receive buffer size asked for (it grows with the commands, and with kernel drops).
+     */
+    int getReceiveBufferRequested();
+    
+    /**
+     * @return the socket receive buffer size the OS reports it granted.
+     */
+    int getReceiveBufferGranted();
+    
+}
@@ -0,0 +1,139 @@
+package camera;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A set of striped counters (one LongAdder for each Counter), so that the managing threads can count events
+ * cheaply, while JMX reads them from other threads.
+ */
+class CameraCounters implements CameraStatistics {
+    
+    /**
+     * The things that are counted.
+     */
+    enum Counter {
+        SUBMITTED,
+        COMPLETED,
+        FAILED,
+        TIMEOUTS,
+        EXPIRED,
+        DATAGRAMS,
+        BYTES,
+        DUPLICATES,
+        SHORT,
+        LONG,
+        STALE_BYTES,
+        ZERO_READS,
+        RESENDS,
+        KERNEL_DROPS
+    }
+    
+    private static final Counter[] COUNTERS = Counter.values();
+    
+    private final LongAdder[] counts = new LongAdder[COUNTERS.length];
+    
+    CameraCounters() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+    
+    void increment(Counter counter) {
+        counts[counter.ordinal()].increment();
+    }
+    
+    void add(Counter counter, long amount) {
+        counts[counter.ordinal()].add(amount);
+    }
+    
+    long get(Counter counter) {
+        return counts[counter.ordinal()].sum();
+    }
+    
+    /**
+     * Add all of these counts to another set of counters.
+     */
+    void addTo(CameraCounters other) {
+        for (Counter counter : COUNTERS) {
+            other.add(counter, get(counter));
+        }
+    }
+    
+    @Override
+    public void resetCounters() {
+        for (LongAdder count : counts) {
+            count.reset();
+        }
+    }
+    
+    @Override
+    public long getCommandsSubmitted() {
+        return get(Counter.SUBMITTED);
+    }
+    
+    @Override
+    public long getCommandsCompleted() {
+        return get(Counter.COMPLETED);
+    }
+    
+    @Override
+    public long getCommandsFailed() {
+        return get(Counter.FAILED);
+    }
+    
+    @Override
+    public long getTimeouts() {
+        return get(Counter.TIMEOUTS);
+    }
+    
+    @Override
+    public long getQueueExpiries() {
+        return get(Counter.EXPIRED);
+    }
+    
+    @Override
+    public long getDatagramsReceived() {
+        return get(Counter.DATAGRAMS);
+    }
+    
+    @Override
+    public long getBytesReceived() {
+        return get(Counter.BYTES);
+    }
+    
+    @Override
+    public long getDuplicateDatagrams() {
+        return get(Counter.DUPLICATES);
+    }
+    
+    @Override
+    public long getShortDatagrams() {
+        return get(Counter.SHORT);
+    }
+    
+    @Override
+    public long getLongDatagrams() {
+        return get(Counter.LONG);
+    }
+    
+    @Override
+    public long getStaleBytesDrained() {
+        return get(Counter.STALE_BYTES);
+    }
+    
+    @Override
+    public long getZeroReads() {
+        return get(Counter.ZERO_READS);
+    }
+    
+    @Override
+    public long getResendRequests() {
+        return get(Counter.RESENDS);
+    }
+    
+    @Override
+    public long getKernelDrops() {
+        return get(Counter.KERNEL_DROPS);
+    }
+    
+}
@@ -0,0 +1,290 @@
+package camera;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A small, fixed set of threads that drive the communication with many cameras.
+ * 
+ * Each loop owns one Selector, and any number of camera channels can be registered on it.
+ * A camera is always bound to exactly one loop, so all of its state is only ever touched
+ * by a single thread, and the one-command-at-a-time guarantee is kept without locks.
+ * 
+ * The number of threads is fixed when the group is created, and does not grow with
+ * the number of cameras.
+ */
+public final class CameraEventLoopGroup implements Closeable {
+    
+    /**
+     * The callback a camera supplies to the loop it is registered on.
+     * Deadlines are handled by the DeadlineTimer, which hands them to the loop with execute().
+     */
+    interface Handler {
+        
+        /**
+         * The channel has data available to read. Called on the loop thread.
+         */
+        void onReadable();
+        
+        /**
+         * The loop has been closed, and will not call again: fail whatever is in progress. Called on the loop
+         * thread, as it finishes.
+         */
+        void onClosed();
+        
+        /**
+         * onReadable threw, and will not be called again (the channel is no longer selected): fail whatever is
+         * in progress. Called on the loop thread.
+         */
+        void onFailed(RuntimeException e);
+        
+    }
+    
+    /**
+     * A single thread, and the selector it waits on.
+     */
+    static final class EventLoop implements Runnable {
+        
+        private final Selector selector;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean closed = false;
+        // set once the thread has finished, from then on execute() runs the tasks itself.
+        private volatile boolean terminated = false;
+        private final Consumer<SelectionKey> dispatch = new Consumer<SelectionKey>() {
+            @Override
+            public void accept(SelectionKey key) {
+                if (key.isValid() && key.isReadable()) {
+                    Handler handler = (Handler)key.attachment();
+                    try {
+                        handler.onReadable();
+                    } catch (RuntimeException e) {
+                        // its state cannot be trusted, stop it rather than carry on calling it.
+                        key.cancel();
+                        handler.onFailed(e);
+                    }
+                }
+            }
+        };
+        
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            // We are daemon threads, so if the JVM dies, we do too.
+            thread.setDaemon(true);
+        }
+        
+        /**
+         * Run some logic on the loop thread (at some point soon).
+         * @param task the logic to run.
+         */
+        void execute(Runnable task) {
+            pending.add(task);
+            if (terminated) {
+                // the loop's thread is gone, the callers take turns instead.
+                synchronized (this) {
+                    runPending();
+                }
+            } else if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+        
+        /**
+         * Register a camera channel on this loop, and wait until it is registered.
+         * @param channel the (non-blocking) channel.
+         * @param handler the logic to call when the channel needs attention.
+         * @throws IOException if the channel could not be registered (the loop is closed, for example).
+         */
+        void register(final DatagramChannel channel, final Handler handler) throws IOException {
+            final CompletableFuture<Void> registered = new CompletableFuture<>();
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (closed) {
+                            throw new IOException(thread.getName() + " is closed");
+                        }
+                        channel.register(selector, SelectionKey.OP_READ, handler);
+                        registered.complete(null);
+                    } catch (IOException | RuntimeException e) {
+                        registered.completeExceptionally(e);
+                    }
+                }
+            };
+            if (Thread.currentThread() == thread) {
+                // the loop is not selecting, and would never get to a task while we waited for it.
+                task.run();
+            } else {
+                execute(task);
+            }
+            try {
+                registered.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to register a camera on " + thread.getName(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted registering a camera on " + thread.getName());
+            }
+        }
+        
+        /**
+         * Remove a camera channel from this loop.
+         * @param channel the channel to remove.
+         */
+        void deregister(final DatagramChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey key = channel.keyFor(selector);
+                    if (key != null) {
+                        key.cancel();
+                    }
+                }
+            });
+        }
+        
+        Thread getThread() {
+            return thread;
+        }
+        
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    runPending();
+                    
+                    // the ready keys are handed straight to dispatch, rather than collected in the selected-key set,
+                    // which would need an iterator (garbage) for every select.
+                    if (!pending.isEmpty()) {
+                        // something was queued while we were busy, don't wait.
+                        selector.selectNow(dispatch);
+                    } else {
+                        // wait for data, or for execute() (which includes expired deadlines).
+                        selector.select(dispatch);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // the selector itself failed (the cameras' failures are handled in dispatch), try again.
+                    AsyncLog.error("{} failed to select: {}").arg(thread.getName()).arg(e).publish();
+                }
+            }
+            // the cameras still registered will not be serviced any more, fail what they have in progress.
+            synchronized (this) {
+                runPending();
+                for (SelectionKey key : selector.keys()) {
+                    ((Handler)key.attachment()).onClosed();
+                }
+                terminated = true;
+                runPending();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                AsyncLog.warn("{} failed to close its selector: {}").arg(thread.getName()).arg(e).publish();
+            }
+        }
+        
+        private void runPending() {
+            Runnable task;
+            while ((task = pending.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // one camera's task failing should not stop all the others (the cameras' own tasks stop
+                    // the camera when they fail, see CameraControl).
+                    AsyncLog.error("{} task failed: {}").arg(thread.getName()).arg(e).publish();
+                }
+            }
+        }
+        
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+    
+    private static final class DefaultHolder {
+        private static final CameraEventLoopGroup DEFAULT = createDefault();
+        
+        private static CameraEventLoopGroup createDefault() {
+            try {
+                return new CameraEventLoopGroup();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create the default camera event loops", e);
+            }
+        }
+    }
+    
+    /**
+     * The group used by cameras that do not specify one. It has one loop per available processor.
+     * @return the shared default group.
+     */
+    public static CameraEventLoopGroup getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+    
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    
+    /**
+     * Create a group with one loop per available processor.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public CameraEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a group with the given number of loops.
+     * @param nloops the number of threads to use.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public CameraEventLoopGroup(int nloops) throws IOException {
+        if (nloops < 1) {
+            throw new IllegalArgumentException("Need at least one loop, not " + nloops);
+        }
+        loops = new EventLoop[nloops];
+        for (int i = 0; i < nloops; i++) {
+            loops[i] = new EventLoop("Camera Control Event Loop " + i);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+    
+    /**
+     * @return the number of loops (threads) in this group.
+     */
+    public int size() {
+        return loops.length;
+    }
+    
+    /**
+     * Pick the loop a new camera should be bound to (round-robin).
+     */
+    EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+    
+    /**
+     * Stop all the loops. Cameras registered on this group will no longer be serviced: their commands in
+     * progress, or queued, complete with a fail-result, as do any submitted to them from now on.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+    
+}
@@ -0,0 +1,196 @@
+package camera;
+
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the life of each command, so stalls in a capture can be lined up with
+ * GC, safepoints and CPU contention in the same recording.
+ * 
+ * Each method checks whether its event is enabled before creating it, so when nothing is recording, an
+ * event costs a volatile read, and does not allocate. The events are instant, the interesting times are
+ * recorded as timespans.
+ * 
+ * Gaps between datagrams are only recorded when longer than -Dcamera.jfr.gap milliseconds (5 by default).
+ */
+final class CameraEvents {
+    
+    static final long GAP_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(Long.getLong("camera.jfr.gap", 5L));
+    
+    private static final String CATEGORY = "Camera Control";
+    
+    private static final EventType ENQUEUED = EventType.getEventType(Enqueued.class);
+    private static final EventType DEQUEUED = EventType.getEventType(Dequeued.class);
+    private static final EventType SENT = EventType.getEventType(Sent.class);
+    private static final EventType FIRST = EventType.getEventType(FirstDatagram.class);
+    private static final EventType GAP = EventType.getEventType(Gap.class);
+    private static final EventType ENDED = EventType.getEventType(Ended.class);
+    
+    private CameraEvents() {
+        // static methods only.
+    }
+    
+    @Category(CATEGORY)
+    @StackTrace(false)
+    abstract static class CommandEvent extends Event {
+        @Label("Camera")
+        String camera;
+        @Label("Command")
+        String command;
+        @Label("Tag")
+        int tag;
+    }
+    
+    @Name("camera.CommandEnqueued")
+    @Label("Command Enqueued")
+    @Description("A command was added to a camera's queue")
+    static final class Enqueued extends CommandEvent {
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+    
+    @Name("camera.CommandDequeued")
+    @Label("Command Dequeued")
+    @Description("The manager took a command from the queue to send it")
+    static final class Dequeued extends CommandEvent {
+        @Label("Queue Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+    }
+    
+    @Name("camera.CommandSent")
+    @Label("Command Sent")
+    @Description("A command was sent to the camera")
+    static final class Sent extends CommandEvent {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+    
+    @Name("camera.FirstDatagram")
+    @Label("First Datagram")
+    @Description("The first datagram of a response arrived")
+    static final class FirstDatagram extends CommandEvent {
+        @Label("Since Sent")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+    
+    @Name("camera.DatagramGap")
+    @Label("Datagram Gap")
+    @Description("A long time passed between two datagrams of a response")
+    static final class Gap extends CommandEvent {
+        @Label("Gap")
+        @Timespan(Timespan.NANOSECONDS)
+        long gap;
+        @Label("Packets")
+        int packets;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+    
+    @Name("camera.CommandEnded")
+    @Label("Command Ended")
+    @Description("A command completed, timed out, failed, or expired in the queue")
+    static final class Ended extends CommandEvent {
+        @Label("Outcome")
+        String outcome;
+        @Label("Since Sent")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+        @Label("Packets")
+        int packets;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Resend Requests")
+        int resends;
+    }
+    
+    static void enqueued(String camera, CameraCommands cmd, int queueDepth) {
+        if (ENQUEUED.isEnabled()) {
+            Enqueued e = new Enqueued();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = -1;
+            e.queueDepth = queueDepth;
+            e.commit();
+        }
+    }
+    
+    static void dequeued(String camera, CameraCommands cmd, int tag, long queueWait) {
+        if (DEQUEUED.isEnabled()) {
+            Dequeued e = new Dequeued();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = tag;
+            e.queueWait = queueWait;
+            e.commit();
+        }
+    }
+    
+    static void sent(String camera, CameraCommands cmd, int tag, long bytes) {
+        if (SENT.isEnabled()) {
+            Sent e = new Sent();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = tag;
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+    
+    static void firstDatagram(String camera, CameraCommands cmd, int tag, long latency, long bytes) {
+        if (FIRST.isEnabled()) {
+            FirstDatagram e = new FirstDatagram();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = tag;
+            e.latency = latency;
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+    
+    static void gap(String camera, CameraCommands cmd, int tag, long gap, int packets, long bytes) {
+        if (gap >= GAP_THRESHOLD && GAP.isEnabled()) {
+            Gap e = new Gap();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = tag;
+            e.gap = gap;
+            e.packets = packets;
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+    
+    static void ended(String camera, CameraCommands cmd, int tag, String outcome, long elapsed, int packets, long bytes, int resends) {
+        if (ENDED.isEnabled()) {
+            Ended e = new Ended();
+            e.camera = camera;
+            e.command = cmd.getName();
+            e.tag = tag;
+            e.outcome = outcome;
+            e.elapsed = elapsed;
+            e.packets = packets;
+            e.bytes = bytes;
+            e.resends = resends;
+            e.commit();
+        }
+    }
+    
+}
@@ -0,0 +1,110 @@
+package camera;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes each camera's counters over JMX, and the total for all of them (the fleet).
+ * 
+ * The fleet keeps the final counts of cameras that have been closed, and adds the current counts of
+ * the open ones whenever it is read, so the cameras only ever count in to their own counters.
+ */
+final class CameraFleet extends CameraCounters implements CameraFleetMXBean {
+    
+    private static final String DOMAIN = "camera";
+    private static final CameraFleet FLEET = new CameraFleet();
+    // distinguishes cameras with the same address.
+    private static final AtomicInteger IDS = new AtomicInteger();
+    
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(FLEET, new ObjectName(DOMAIN + ":type=CameraFleet"));
+        } catch (JMException e) {
+            AsyncLog.warn("Unable to publish the camera fleet over JMX: {}").arg(e).publish();
+        }
+    }
+    
+    private final Set<CameraCounters> cameras = ConcurrentHashMap.newKeySet();
+    
+    private CameraFleet() {
+        super();
+    }
+    
+    /**
+     * Publish a camera's counters, and include them in the fleet's.
+     * @param camera the camera's counters.
+     * @param remote the address of the camera.
+     * @return the name it was registered with (null if it could not be).
+     */
+    static <T extends CameraCounters & CameraControlMXBean> ObjectName register(T camera, String remote) {
+        FLEET.cameras.add(camera);
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=CameraControl,name=" + ObjectName.quote(remote + "#" + IDS.incrementAndGet()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(camera, name);
+            return name;
+        } catch (JMException e) {
+            AsyncLog.warn("Unable to publish camera {} over JMX: {}").arg(remote).arg(e).publish();
+            return null;
+        }
+    }
+    
+    /**
+     * Stop publishing a (closed) camera's counters, and keep its final counts in the fleet's.
+     * @param camera the camera's counters.
+     * @param name the name it was registered with (may be null).
+     */
+    static void unregister(CameraCounters camera, ObjectName name) {
+        if (!FLEET.cameras.remove(camera)) {
+            // already done.
+            return;
+        }
+        camera.addTo(FLEET);
+        if (name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                AsyncLog.warn("Unable to unpublish {} from JMX: {}").arg(name).arg(e).publish();
+            }
+        }
+    }
+    
+    @Override
+    long get(Counter counter) {
+        long total = super.get(counter);
+        for (CameraCounters camera : cameras) {
+            total += camera.get(counter);
+        }
+        return total;
+    }
+    
+    @Override
+    public void resetCounters() {
+        super.resetCounters();
+        for (CameraCounters camera : cameras) {
+            camera.resetCounters();
+        }
+    }
+    
+    @Override
+    public int getCameras() {
+        return cameras.size();
+    }
+    
+    @Override
+    public long getHostRcvbufErrors() {
+        return UdpMonitor.shared().getRcvbufErrors();
+    }
+    
+    @Override
+    public long getHostRcvbufErrorsDelta() {
+        return UdpMonitor.shared().getRcvbufErrorsDelta();
+    }
+    
+}
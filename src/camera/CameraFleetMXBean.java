@@ -0,0 +1,25 @@
+package camera;
+
+/**
+ * The JMX view of all the cameras in this JVM together (named camera:type=CameraFleet).
+ * The counters include cameras that have since been closed.
+ */
+public interface CameraFleetMXBean extends CameraStatistics {
+    
+    /**
+     * @return the number of cameras currently open.
+     */
+    int getCameras();
+    
+    /**
+     * @return UDP datagrams the kernel dropped for full receive buffers, on the whole host, since sampling
+     * started (RcvbufErrors in /proc/net/snmp, -1 where that is not available).
+     */
+    long getHostRcvbufErrors();
+    
+    /**
+     * @return the host-wide RcvbufErrors in the last sample interval.
+     */
+    long getHostRcvbufErrorsDelta();
+    
+}
@@ -0,0 +1,362 @@
+package camera;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs IMAGE commands through every combination (cell) of a set of network conditions, and reports how each
+ * combination fared, so timeouts and retry policies can be chosen from data rather than guessed.
+ * 
+ * The conditions swept are the datagram loss rate and reordering done by a DummyCam in this JVM (see
+ * Impairment), the rate the DummyCam paces its datagrams at in bytes per second (0 sends them back to back, see
+ * Pacer), the datagram size (the image is the same number of bytes, in more or fewer rows), the socket receive
+ * buffer size (0 sizes it automatically), and the command timeout, for each of the wait strategies given:
+ * 
+ * <pre>
+ * java -Dcamera.log.level=ERROR -cp bin camera.CameraScenarios [-loss 0,0.01,0.05,0.1,0.2] [-reorder 0,0.05]
+ *             [-depth n] [-pace 0,100000000] [-size 640,1400,4000] [-buffer 0,65536] [-timeout 100,500] [-frame bytes]
+ *             [-commands n] [-warmup n] [-window n] [-strategy SELECT,BLOCKING] [-resend ms] [-seed n] [-port p]
+ *             [-format table|csv]
+ * </pre>
+ * 
+ * Each cell uses a new CameraControl, and the same seed for the damage, so cells differ only in their
+ * conditions, and a run can be repeated. The warm-up commands of each cell are not reported. Each cell reports
+ * the completion rate (whole images), the partial and timeout rates, the goodput (bytes of whole images per
+ * second), the datagrams the DummyCam lost and reordered on purpose, and the latency percentiles of the
+ * completed commands. (The log level keeps the warnings for each failed command out of the table.) Sweeping the
+ * pace finds the fastest sensor rate the controller keeps up with, before the receive buffer overflows and
+ * datagrams are lost. The run ends with the number of log messages dropped (as AsyncLog's ring was full).
+ */
+public class CameraScenarios {
+    
+    /**
+     * One combination of conditions, and how the commands fared in it.
+     */
+    private static final class Cell {
+        
+        private final WaitStrategy strategy;
+        private final double loss;
+        private final double reorder;
+        private final long pace;
+        private final int size;
+        private final int buffer;
+        private final int timeout;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger partial = new AtomicInteger();
+        private final AtomicInteger timedOut = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private int commands;
+        private long lost;
+        private long reordered;
+        private double seconds;
+        
+        Cell(WaitStrategy strategy, double loss, double reorder, long pace, int size, int buffer, int timeout) {
+            this.strategy = strategy;
+            this.loss = loss;
+            this.reorder = reorder;
+            this.pace = pace;
+            this.size = size;
+            this.buffer = buffer;
+            this.timeout = timeout;
+        }
+        
+        void record(long nanos, Result result) {
+            if (result.isSuccess()) {
+                completed.incrementAndGet();
+                bytes.addAndGet(result.getLength());
+                latency.record(nanos);
+            } else if (result.getLength() > 0) {
+                partial.incrementAndGet();
+            } else {
+                timedOut.incrementAndGet();
+            }
+        }
+        
+        static void header(PrintStream out, boolean csv) {
+            if (csv) {
+                out.println("strategy,loss,reorder,pace_bytes_s,datagram_size,buffer,timeout_ms,commands,completion_rate,partial_rate,timeout_rate,"
+                        + "goodput_mb_s,lost_datagrams,reordered_datagrams,p50_ms,p99_ms,p99_9_ms,max_ms");
+            } else {
+                out.printf(Locale.ROOT, "%-10s %6s %7s %9s %6s %9s %8s %8s %9s %8s %8s %10s %8s %9s %9s %9s %9s %9s%n",
+                        "strategy", "loss", "reorder", "pace", "size", "buffer", "timeout", "commands", "complete", "partial", "timeout",
+                        "MB/s", "lost", "reordered", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+            }
+        }
+        
+        void print(PrintStream out, boolean csv) {
+            LatencyHistogram.Snapshot s = latency.snapshot();
+            double n = Math.max(1, commands);
+            String format = csv ? "%s,%.3f,%.3f,%s,%d,%d,%d,%d,%.4f,%.4f,%.4f,%.2f,%d,%d,%.3f,%.3f,%.3f,%.3f%n"
+                    : "%-10s %6.3f %7.3f %9s %6d %9s %8d %8d %8.1f%% %7.1f%% %7.1f%% %10.2f %8d %9d %9.3f %9.3f %9.3f %9.3f%n";
+            out.printf(Locale.ROOT, format, strategy, loss, reorder, csv || pace > 0 ? pace : "-", size, csv || buffer > 0 ? buffer : "auto", timeout, commands,
+                    completed.get() / n * (csv ? 1 : 100), partial.get() / n * (csv ? 1 : 100), timedOut.get() / n * (csv ? 1 : 100),
+                    bytes.get() / seconds / (1024 * 1024), lost, reordered,
+                    millis(s.getValueAtPercentile(50.0)), millis(s.getValueAtPercentile(99.0)),
+                    millis(s.getValueAtPercentile(99.9)), millis(s.getMax()));
+        }
+        
+        private static double millis(long nanos) {
+            return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+    
+    private final DummyCam cam;
+    private final InetSocketAddress address;
+    private final int frame;
+    private final int depth;
+    private final long seed;
+    private final int window;
+    private final int resend;
+    
+    private CameraScenarios(DummyCam cam, InetSocketAddress address, int frame, int depth, long seed, int window,
+            int resend) {
+        this.cam = cam;
+        this.address = address;
+        this.frame = frame;
+        this.depth = depth;
+        this.seed = seed;
+        this.window = window;
+        this.resend = resend;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        double[] losses = { 0.0, 0.01, 0.05, 0.1, 0.2 };
+        double[] reorders = { 0.0, 0.05 };
+        long[] paces = { 0 };
+        int[] sizes = { 640, 1400, 4000 };
+        int[] buffers = { 0, 65536 };
+        int[] timeouts = { 100, 500 };
+        int frame = 480 * 640;
+        int commands = 100;
+        int warmup = 10;
+        int depth = 3;
+        int window = 1;
+        int resend = 20;
+        long seed = 1;
+        int port = 12348;
+        WaitStrategy[] strategies = { WaitStrategy.SELECT };
+        String format = "table";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-loss":
+                    losses = doubles(args[++i]);
+                    break;
+                case "-reorder":
+                    reorders = doubles(args[++i]);
+                    break;
+                case "-pace":
+                    paces = longs(args[++i]);
+                    break;
+                case "-size":
+                    sizes = ints(args[++i]);
+                    break;
+                case "-buffer":
+                    buffers = ints(args[++i]);
+                    break;
+                case "-timeout":
+                    timeouts = ints(args[++i]);
+                    break;
+                case "-frame":
+                    frame = Integer.parseInt(args[++i]);
+                    break;
+                case "-commands":
+                    commands = Integer.parseInt(args[++i]);
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-depth":
+                    depth = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-resend":
+                    resend = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-strategy":
+                    strategies = strategies(args[++i]);
+                    break;
+                case "-format":
+                    format = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        final DummyCam cam = new DummyCam(port);
+        cam.setErrorRate(0.0);
+        cam.setVerbose(false);
+        Thread dummy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cam.listen();
+                } catch (IOException e) {
+                    AsyncLog.error("DummyCam failed: {}").arg(e).publish();
+                }
+            }
+        }, "Scenario DummyCam");
+        dummy.setDaemon(true);
+        dummy.start();
+        
+        CameraScenarios scenarios = new CameraScenarios(cam, new InetSocketAddress("localhost", port), frame, depth, seed,
+                window, resend);
+        final boolean csv = "csv".equalsIgnoreCase(format);
+        final PrintStream out = System.out;
+        if (!csv) {
+            out.printf(Locale.ROOT, "# %d commands per cell after %d warm-up, %d byte frames, window %d, resend after %dms, seed %d%n",
+                    commands, warmup, frame, window, resend, seed);
+        }
+        Cell.header(out, csv);
+        for (WaitStrategy strategy : strategies) {
+            for (double loss : losses) {
+                for (double reorder : reorders) {
+                    for (long pace : paces) {
+                        for (int size : sizes) {
+                            for (int buffer : buffers) {
+                                for (int timeout : timeouts) {
+                                    Cell cell = new Cell(strategy, loss, reorder, pace, size, buffer, timeout);
+                                    scenarios.run(cell, warmup, commands);
+                                    cell.print(out, csv);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // a full log ring drops messages (rather than slow the managing thread), so the warnings of a run
+        // may be fewer than its failures.
+        final long dropped = AsyncLog.getDropped();
+        if (!csv) {
+            out.printf(Locale.ROOT, "# %d log messages dropped%n", dropped);
+        } else if (dropped > 0) {
+            System.err.printf(Locale.ROOT, "%d log messages dropped%n", dropped);
+        }
+    }
+    
+    /**
+     * Run the commands of one cell, with up to a window of them in progress at once.
+     */
+    private void run(final Cell cell, int warmup, int commands) throws IOException, InterruptedException {
+        final int rows = Math.max(1, frame / cell.size);
+        final CameraCommands image = new CameraCommands("IMAGE", rows, cell.size);
+        cam.setImage(rows, cell.size);
+        Impairment impairment = null;
+        if (cell.loss > 0 || cell.reorder > 0) {
+            impairment = new Impairment(seed);
+            if (cell.loss > 0) {
+                impairment.loss(cell.loss);
+            }
+            if (cell.reorder > 0) {
+                impairment.reorder(cell.reorder, depth);
+            }
+        }
+        cam.setImpairment(impairment);
+        cam.setPacer(cell.pace > 0 ? new Pacer(cell.pace, 0L, 0L) : null);
+        
+        try (CameraControl control = new CameraControl(address, CameraEventLoopGroup.getDefault(), window, cell.strategy)) {
+            control.setResendGap(resend);
+            if (cell.buffer > 0) {
+                control.setReceiveBufferSize(cell.buffer);
+            }
+            final Semaphore permits = new Semaphore(window);
+            long start = 0;
+            long lostBefore = 0;
+            long reorderedBefore = 0;
+            for (int i = 0; i < warmup + commands; i++) {
+                if (i == warmup) {
+                    // wait for the warm-up to finish, then measure.
+                    permits.acquire(window);
+                    permits.release(window);
+                    start = System.nanoTime();
+                    lostBefore = impairment == null ? 0 : impairment.getDropped();
+                    reorderedBefore = impairment == null ? 0 : impairment.getReordered();
+                }
+                final boolean measured = i >= warmup;
+                permits.acquire();
+                final long sent = System.nanoTime();
+                CompletableFuture<Result> future = control.submit(image, cell.timeout);
+                future.whenComplete(new BiConsumer<Result, Throwable>() {
+                    @Override
+                    public void accept(Result result, Throwable failure) {
+                        if (result != null) {
+                            if (measured) {
+                                cell.record(System.nanoTime() - sent, result);
+                            }
+                            result.release();
+                        }
+                        permits.release();
+                    }
+                });
+            }
+            permits.acquire(window);
+            cell.seconds = (System.nanoTime() - start) / 1e9;
+            cell.commands = commands;
+            cell.lost = impairment == null ? 0 : impairment.getDropped() - lostBefore;
+            cell.reordered = impairment == null ? 0 : impairment.getReordered() - reorderedBefore;
+        } finally {
+            cam.setImpairment(null);
+            cam.setPacer(null);
+        }
+    }
+    
+    private static double[] doubles(String list) {
+        List<Double> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Double.parseDouble(value.trim()));
+        }
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+    
+    private static WaitStrategy[] strategies(String list) {
+        String[] values = list.split(",");
+        WaitStrategy[] result = new WaitStrategy[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = WaitStrategy.valueOf(values[i].trim().toUpperCase(Locale.ROOT));
+        }
+        return result;
+    }
+    
+    private static long[] longs(String list) {
+        String[] values = list.split(",");
+        long[] result = new long[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Long.parseLong(values[i].trim());
+        }
+        return result;
+    }
+    
+    private static int[] ints(String list) {
+        String[] values = list.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+    
+}
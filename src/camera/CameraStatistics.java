@@ -0,0 +1,85 @@
+package camera;
+
+/**
+ * Counters of what has happened between the camera control and its camera(s), since the
+ * counters were created (or reset). They are published over JMX, see CameraControlMXBean
+ * and CameraFleetMXBean.
+ */
+public interface CameraStatistics {
+    
+    /**
+     * @return commands accepted in to the queue.
+     */
+    long getCommandsSubmitted();
+    
+    /**
+     * @return commands that received a complete response.
+     */
+    long getCommandsCompleted();
+    
+    /**
+     * @return commands that failed, for any reason (each one is a fail-result with a ProtocolException).
+     */
+    long getCommandsFailed();
+    
+    /**
+     * @return commands that failed because the camera did not complete the response in time.
+     */
+    long getTimeouts();
+    
+    /**
+     * @return commands that waited too long in the queue, and were never sent.
+     */
+    long getQueueExpiries();
+    
+    /**
+     * @return datagrams read from the camera (of any size, for any command).
+     */
+    long getDatagramsReceived();
+    
+    /**
+     * @return bytes read from the camera, including tags and stale data.
+     */
+    long getBytesReceived();
+    
+    /**
+     * @return datagrams that had already been received (typically re-sent twice).
+     */
+    long getDuplicateDatagrams();
+    
+    /**
+     * @return datagrams smaller than the command in progress expects.
+     */
+    long getShortDatagrams();
+    
+    /**
+     * @return datagrams larger than the command in progress expects.
+     */
+    long getLongDatagrams();
+    
+    /**
+     * @return bytes discarded because nothing was waiting for them (late responses to failed commands).
+     */
+    long getStaleBytesDrained();
+    
+    /**
+     * @return times the selector reported a camera readable, but there was nothing to read.
+     */
+    long getZeroReads();
+    
+    /**
+     * @return requests to the camera to re-send missing datagrams.
+     */
+    long getResendRequests();
+    
+    /**
+     * @return datagrams the kernel dropped because the socket receive buffer was full (sampled, Linux only).
+     */
+    long getKernelDrops();
+    
+    /**
+     * Set all the counters back to 0.
+     */
+    void resetCounters();
+    
+}
@@ -1,26 +1,398 @@
 package camera;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 /**
- * Simple main routine that sends a few commands to the controller.
+ * Load generator: drives commands at one or more cameras, at a target rate, and reports how they fared.
+ * 
+ * The load is open-loop: each command is sent at its intended time, whether or not earlier commands have
+ * completed, and its latency is measured from that intended time. A slow camera then shows up as
+ * latency, rather than as a lower rate that hides it (coordinated omission).
+ * 
+ * <pre>
+ * java -cp bin camera.CameraTest [-host h] [-port p] [-ports n] [-cameras n] [-concurrency n] [-strategy s]
+ *                                [-mix RESET=1,STATUS=1,IMAGE=1] [-rate perSecond] [-warmup s] [-duration s]
+ *                                [-timeout ms] [-format csv|json]
+ * </pre>
+ * 
+ * The cameras are spread over 'ports' consecutive ports from 'port'. Concurrency is the number of commands each
+ * camera may have in progress at once (its window). The rate is for all cameras together. Commands sent during
+ * the warm-up are not reported.
+ * 
+ * Each command type (and all of them together) is reported with its throughput, latency percentiles, and the rates
+ * of success, timeout (nothing received), partial (some, but not all, data received) and rejected (the camera's
+ * queue was full, the command was never sent). A command still outstanding when the run ends (twice the timeout
+ * after the last one was sent, plus a second) counts as a timeout, with its latency up to then. Throughput is over
+ * the time actually measured, from the end of the warm-up until the run ended.
+ * 
  * @author rolf
- *
+ * 
  */
 public class CameraTest {
     
-    private static final CameraCommands[] cmds = {
-            new CameraCommands("RESET", 1, 4),
-            new CameraCommands("RESET", 1, 4),
-            new CameraCommands("IMAGE", 480, 640),
-    };
-
+    private static final CameraCommands RESET = new CameraCommands("RESET", 1, 4);
+    private static final CameraCommands STATUS = new CameraCommands("STATUS", 1, 8);
+    private static final CameraCommands IMAGE = new CameraCommands("IMAGE", 480, 640);
+    
+    /**
+     * The outcomes for one type of command.
+     */
+    private static final class Stats {
+        
+        private final String name;
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long success = 0;
+        private long timeout = 0;
+        private long partial = 0;
+        private long rejected = 0;
+        
+        Stats(String name) {
+            this.name = name;
+        }
+        
+        synchronized void record(long latencyNanos, Result result) {
+            add(latencyNanos);
+            if (result.isSuccess()) {
+                success++;
+            } else if (result.getLength() > 0) {
+                partial++;
+            } else {
+                timeout++;
+            }
+        }
+        
+        /**
+         * Count a command that never completed as a timeout.
+         */
+        synchronized void expire(long latencyNanos) {
+            add(latencyNanos);
+            timeout++;
+        }
+        
+        synchronized void reject() {
+            rejected++;
+        }
+        
+        private void add(long latencyNanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+        }
+        
+        synchronized void addTo(Stats all) {
+            synchronized (all) {
+                for (int i = 0; i < count; i++) {
+                    if (all.count == all.latencies.length) {
+                        all.latencies = Arrays.copyOf(all.latencies, all.count * 2);
+                    }
+                    all.latencies[all.count++] = latencies[i];
+                }
+                all.success += success;
+                all.timeout += timeout;
+                all.partial += partial;
+                all.rejected += rejected;
+            }
+        }
+        
+        synchronized Report report(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return new Report(name, count + rejected, seconds, sorted, success, timeout, partial, rejected);
+        }
+    }
+    
+    /**
+     * A command that has been sent and has not completed yet. Whoever removes it from the outstanding set (its
+     * completion, or the end of the run) records it, so it is only counted once.
+     */
+    private static final class Pending implements BiConsumer<Result, Throwable> {
+        
+        private final Set<Pending> outstanding;
+        // null during the warm-up.
+        private final Stats stat;
+        private final long intended;
+        
+        Pending(Set<Pending> outstanding, Stats stat, long intended) {
+            this.outstanding = outstanding;
+            this.stat = stat;
+            this.intended = intended;
+        }
+        
+        @Override
+        public void accept(Result result, Throwable failure) {
+            long latency = System.nanoTime() - intended;
+            if (outstanding.remove(this) && stat != null && result != null) {
+                stat.record(latency, result);
+            }
+            if (result != null) {
+                result.release();
+            }
+        }
+        
+        /**
+         * The run is over, and this command never completed.
+         */
+        void expire(long now) {
+            if (outstanding.remove(this) && stat != null) {
+                stat.expire(now - intended);
+            }
+        }
+    }
+    
+    /**
+     * The final figures for one type of command.
+     */
+    private static final class Report {
+        
+        private final String name;
+        private final long requests;
+        private final double throughput;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+        private final double max;
+        private final double success;
+        private final double timeout;
+        private final double partial;
+        private final double rejected;
+        
+        Report(String name, long requests, double seconds, long[] sorted, long success, long timeout, long partial, long rejected) {
+            this.name = name;
+            this.requests = requests;
+            this.throughput = sorted.length / seconds;
+            this.p50 = percentile(sorted, 0.50);
+            this.p99 = percentile(sorted, 0.99);
+            this.p999 = percentile(sorted, 0.999);
+            this.max = percentile(sorted, 1.0);
+            this.success = rate(success, requests);
+            this.timeout = rate(timeout, requests);
+            this.partial = rate(partial, requests);
+            this.rejected = rate(rejected, requests);
+        }
+        
+        private static double rate(long count, long requests) {
+            return requests == 0 ? 0.0 : count / (double)requests;
+        }
+        
+        /**
+         * @return the latency (in milliseconds) at the given fraction of the sorted samples.
+         */
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0.0;
+            }
+            int index = (int)Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+        
+        static void csvHeader(PrintStream out) {
+            out.println("command,requests,throughput_per_s,p50_ms,p99_ms,p99_9_ms,max_ms,success_rate,timeout_rate,partial_rate,rejected_rate");
+        }
+        
+        void csv(PrintStream out) {
+            out.printf(Locale.ROOT, "%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.4f,%.4f,%.4f,%.4f%n",
+                    name, requests, throughput, p50, p99, p999, max, success, timeout, partial, rejected);
+        }
+        
+        void json(PrintStream out, boolean last) {
+            out.printf(Locale.ROOT, "  {\"command\": \"%s\", \"requests\": %d, \"throughput_per_s\": %.2f, "
+                    + "\"p50_ms\": %.3f, \"p99_ms\": %.3f, \"p99_9_ms\": %.3f, \"max_ms\": %.3f, "
+                    + "\"success_rate\": %.4f, \"timeout_rate\": %.4f, \"partial_rate\": %.4f, \"rejected_rate\": %.4f}%s%n",
+                    name, requests, throughput, p50, p99, p999, max, success, timeout, partial, rejected, last ? "" : ",");
+        }
+    }
+    
     public static void main(String[] args) throws IOException, InterruptedException {
-        CameraControl control = new CameraControl(new InetSocketAddress("localhost", 12345));
-        for (CameraCommands cmd : cmds) {
-            System.out.println(cmd + "\n    " + control.waitForACK(3000, cmd));
+        String host = "localhost";
+        int port = 12345;
+        int ports = 1;
+        int cameras = 1;
+        int concurrency = 1;
+        WaitStrategy strategy = WaitStrategy.SELECT;
+        String mix = "RESET=1,STATUS=1,IMAGE=1";
+        double rate = 100.0;
+        int warmup = 2;
+        int duration = 10;
+        int timeout = 500;
+        String format = "csv";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-host":
+                    host = args[++i];
+                    break;
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-ports":
+                    ports = Integer.parseInt(args[++i]);
+                    break;
+                case "-cameras":
+                    cameras = Integer.parseInt(args[++i]);
+                    break;
+                case "-concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "-strategy":
+                    strategy = WaitStrategy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "-mix":
+                    mix = args[++i];
+                    break;
+                case "-rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-duration":
+                    duration = Integer.parseInt(args[++i]);
+                    break;
+                case "-timeout":
+                    timeout = Integer.parseInt(args[++i]);
+                    break;
+                case "-format":
+                    format = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate must be positive, not " + rate);
+        }
+        
+        // the command mix, as cumulative weights.
+        final List<CameraCommands> commands = new ArrayList<>();
+        final List<Stats> stats = new ArrayList<>();
+        final List<Double> weights = new ArrayList<>();
+        double total = 0.0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            CameraCommands cmd = command(kv[0].trim().toUpperCase(Locale.ROOT));
+            double weight = kv.length > 1 ? Double.parseDouble(kv[1].trim()) : 1.0;
+            if (weight > 0) {
+                total += weight;
+                commands.add(cmd);
+                stats.add(new Stats(kv[0].trim().toUpperCase(Locale.ROOT)));
+                weights.add(total);
+            }
+        }
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("No commands in the mix " + mix);
+        }
+        
+        final CameraEventLoopGroup group = new CameraEventLoopGroup();
+        final CameraControl[] controls = new CameraControl[cameras];
+        for (int i = 0; i < cameras; i++) {
+            controls[i] = new CameraControl(new InetSocketAddress(host, port + i % ports), group, concurrency, strategy);
+        }
+        
+        final Random random = new Random(42);
+        final Set<Pending> outstanding = ConcurrentHashMap.newKeySet();
+        final long period = (long)(TimeUnit.SECONDS.toNanos(1) / rate);
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        long sent = 0;
+        while (true) {
+            // the intended time of this command, regardless of how the earlier ones are going.
+            final long intended = start + sent * period;
+            if (intended - end >= 0) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            
+            double pick = random.nextDouble() * total;
+            int type = 0;
+            while (weights.get(type) <= pick) {
+                type++;
+            }
+            final Stats stat = intended - measureFrom >= 0 ? stats.get(type) : null;
+            final CameraControl control = controls[(int)(sent % cameras)];
+            sent++;
+            
+            final CompletableFuture<Result> future;
+            try {
+                future = control.submit(commands.get(type), timeout);
+            } catch (IllegalStateException e) {
+                // the camera's queue is full.
+                if (stat != null) {
+                    stat.reject();
+                }
+                continue;
+            }
+            Pending pending = new Pending(outstanding, stat, intended);
+            outstanding.add(pending);
+            future.whenComplete(pending);
+        }
+        
+        // give the last commands the chance to complete (or time out), then count what is left as timed out.
+        long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout * 2L + 1000L);
+        while (!outstanding.isEmpty() && System.nanoTime() - drainUntil < 0) {
+            Thread.sleep(10);
+        }
+        final long finished = System.nanoTime();
+        for (Pending pending : outstanding) {
+            pending.expire(finished);
+        }
+        for (CameraControl control : controls) {
+            control.close();
+        }
+        group.close();
+        
+        final double seconds = Math.max(1L, finished - measureFrom) / 1e9;
+        final Stats all = new Stats("ALL");
+        final List<Report> reports = new ArrayList<>();
+        for (Stats stat : stats) {
+            stat.addTo(all);
+            reports.add(stat.report(seconds));
+        }
+        reports.add(all.report(seconds));
+        
+        PrintStream out = System.out;
+        if ("json".equalsIgnoreCase(format)) {
+            out.println("[");
+            for (int i = 0; i < reports.size(); i++) {
+                reports.get(i).json(out, i == reports.size() - 1);
+            }
+            out.println("]");
+        } else {
+            Report.csvHeader(out);
+            for (Report report : reports) {
+                report.csv(out);
+            }
         }
     }
-
+    
+    private static CameraCommands command(String name) {
+        switch (name) {
+            case "RESET":
+                return RESET;
+            case "STATUS":
+                return STATUS;
+            case "IMAGE":
+                return IMAGE;
+            default:
+                throw new IllegalArgumentException("Unknown command " + name + " in the mix, expected RESET, STATUS or IMAGE");
+        }
+    }
+    
 }
@@ -0,0 +1,46 @@
+package camera;
+
+/**
+ * The latencies of one type of command (see CameraCommands.getName()) on one camera.
+ * 
+ * All times are in nanoseconds:
+ * <ul>
+ * <li>queue wait: from submitting the command, to sending it to the camera.</li>
+ * <li>first datagram: from sending the command, to the first datagram of the response.</li>
+ * <li>complete: from sending the command, to the last datagram of a successful response.</li>
+ * </ul>
+ */
+public final class CommandStats {
+    
+    private final String command;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram firstDatagram = new LatencyHistogram();
+    private final LatencyHistogram complete = new LatencyHistogram();
+    
+    CommandStats(String command) {
+        this.command = command;
+    }
+    
+    public String getCommand() {
+        return command;
+    }
+    
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+    
+    public LatencyHistogram getFirstDatagram() {
+        return firstDatagram;
+    }
+    
+    public LatencyHistogram getComplete() {
+        return complete;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s queue wait [%s] first datagram [%s] complete [%s]", command,
+                queueWait.snapshot(), firstDatagram.snapshot(), complete.snapshot());
+    }
+    
+}
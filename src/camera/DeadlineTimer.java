@@ -0,0 +1,215 @@
+package camera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed-wheel timer, shared by all the cameras in the JVM, for command deadlines,
+ * gaps between datagrams, and commands waiting too long in a queue.
+ * 
+ * Time is based on System.nanoTime(), so it does not jump with the wall clock. The wheel
+ * has a slot per tick (1ms), and each Timeout is linked directly in to the slot it expires
+ * in, so scheduling and cancelling are O(1), and neither allocates. A Timeout can be
+ * scheduled again once it has expired or been cancelled.
+ * 
+ * Expired tasks run on the timer thread, so they must be quick: they are expected to hand
+ * the real work to the thread that manages the camera. A task may run just after its timeout
+ * was cancelled on another thread, so it should re-check the state it is interested in.
+ */
+final class DeadlineTimer implements Runnable {
+    
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    // must be a power of 2.
+    private static final int WHEELSIZE = 512;
+    
+    private static final DeadlineTimer SHARED = new DeadlineTimer("Camera Control Timer");
+    
+    /**
+     * @return the timer shared by all cameras in this JVM.
+     */
+    static DeadlineTimer shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Something that happens at a given time, unless it is cancelled first.
+     */
+    static final class Timeout {
+        
+        private final Runnable task;
+        private long deadline;
+        private long rounds;
+        // the links in the wheel slot, and which slot it is in.
+        private boolean scheduled;
+        private Timeout prev;
+        private Timeout next;
+        private int slotIndex;
+        // the link in the list of expired timeouts waiting to run.
+        private Timeout nextExpired;
+        
+        /**
+         * @param task what to run (on the timer thread) when the timeout expires.
+         */
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+        
+        /**
+         * @return the System.nanoTime() this timeout was last scheduled for.
+         */
+        long getDeadline() {
+            return deadline;
+        }
+    }
+    
+    private final long start = System.nanoTime();
+    // the head of the list in each slot.
+    private final Timeout[] wheel = new Timeout[WHEELSIZE];
+    private final Thread thread;
+    // the next tick to process.
+    private long tick = 0;
+    private int pending = 0;
+    private boolean idle = false;
+    
+    private DeadlineTimer(String name) {
+        thread = new Thread(this, name);
+        // We are a daemon thread, so if the JVM dies, we do too.
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * @return the thread the expired tasks run on.
+     */
+    Thread getThread() {
+        return thread;
+    }
+    
+    /**
+     * Schedule (or re-schedule) a timeout.
+     * @param timeout the timeout to schedule.
+     * @param delayNanos how long from now it expires.
+     */
+    void schedule(Timeout timeout, long delayNanos) {
+        final long now = System.nanoTime();
+        final boolean wake;
+        synchronized (this) {
+            unlink(timeout);
+            if (pending == 0) {
+                // the wheel is empty, and the timer thread may be parked, catch the tick up with the clock.
+                tick = Math.max(tick, (now - start) / TICK);
+            }
+            timeout.deadline = now + Math.max(0L, delayNanos);
+            // the slot is processed at the end of its tick, so it never expires early.
+            long expires = Math.max(tick, (timeout.deadline - start) / TICK);
+            timeout.rounds = (expires - tick) / WHEELSIZE;
+            int index = (int)(expires & (WHEELSIZE - 1));
+            timeout.scheduled = true;
+            timeout.slotIndex = index;
+            timeout.prev = null;
+            timeout.next = wheel[index];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            wheel[index] = timeout;
+            pending++;
+            wake = idle;
+            idle = false;
+        }
+        if (wake) {
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    /**
+     * @param timeout the timeout to cancel.
+     * @return true if it was scheduled, and now will not expire.
+     */
+    boolean cancel(Timeout timeout) {
+        synchronized (this) {
+            return unlink(timeout);
+        }
+    }
+    
+    private boolean unlink(Timeout timeout) {
+        if (!timeout.scheduled) {
+            return false;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.slotIndex] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        pending--;
+        return true;
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            Timeout expired = null;
+            final boolean empty;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                if (pending == 0) {
+                    tick = Math.max(tick, (now - start) / TICK);
+                }
+                // process every tick that has ended.
+                while (start + (tick + 1) * TICK <= now) {
+                    expired = expire((int)(tick & (WHEELSIZE - 1)), expired);
+                    tick++;
+                }
+                empty = pending == 0;
+                // if we are going to wait for schedule(), it needs to wake us.
+                idle = empty;
+            }
+            
+            while (expired != null) {
+                Timeout t = expired;
+                expired = t.nextExpired;
+                t.nextExpired = null;
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    AsyncLog.error("Timer task failed").trace(e).publish();
+                }
+            }
+            
+            if (empty) {
+                // nothing scheduled (a task that just ran may have scheduled something, and unparked us already).
+                LockSupport.park(this);
+            } else {
+                long wait;
+                synchronized (this) {
+                    wait = start + (tick + 1) * TICK - System.nanoTime();
+                }
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        }
+    }
+    
+    private Timeout expire(int index, Timeout expired) {
+        Timeout t = wheel[index];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                unlink(t);
+                t.nextExpired = expired;
+                expired = t;
+            }
+            t = next;
+        }
+        return expired;
+    }
+    
+}
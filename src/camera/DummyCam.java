@@ -6,9 +6,25 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This is a dummy remote camera. It returns basic data most of the time, but about 10% of requests will fail to produce anything (and timeout).
+ * 
+ * Commands may be tagged (17:IMAGE), in which case the tag is echoed as a 2-byte prefix on each response datagram.
+ * "RESEND 3-7,10-10" re-sends those datagrams of the last response to the same client and tag.
+ * 
+ * For testing, the image can be given other dimensions (setImage), and the datagrams can be damaged on the
+ * way out, by losing, reordering, duplicating, truncating, delaying or rate-limiting them, or by replaying
+ * the gaps and losses of a recorded trace (setImpairment). The datagrams can also be paced, sent at a steady
+ * rate like a real sensor's, rather than back to back (setPacer), and the IMAGE can be a different frame of
+ * a recording for each command (setRecording).
+ * 
+ * listen() serves one command at a time, serve() serves many clients at once.
  */
 public class DummyCam {
     
@@ -33,11 +49,51 @@ public class DummyCam {
         }
     }
     
+    /**
+     * A response as it was sent to a client, kept to RESEND parts of it: the rows in memory, or for an IMAGE
+     * from a recording, the recorded frame.
+     */
+    static final class Reply {
+        
+        private final byte[][] rows;
+        private final ByteBuffer frame;
+        private final int count;
+        private final int rowSize;
+        
+        Reply(byte[][] rows) {
+            this.rows = rows;
+            this.frame = null;
+            this.count = rows.length;
+            this.rowSize = 0;
+        }
+        
+        Reply(ByteBuffer frame, int count, int rowSize) {
+            this.rows = null;
+            this.frame = frame;
+            this.count = count;
+            this.rowSize = rowSize;
+        }
+        
+        /**
+         * @return the number of datagrams in the response.
+         */
+        int size() {
+            return count;
+        }
+    }
+    
     
     
     static {
+        fill(IMAGEDATA);
+    }
+    
+    /**
+     * Fill an image with a pattern, and the row index in the first two bytes of each row (as index / 100, index % 100).
+     */
+    private static void fill(byte[][] image) {
         int cnt = 0;
-        for (byte[] row : IMAGEDATA) {
+        for (byte[] row : image) {
             for (int i = 2; i < row.length; i++) {
                 row[i] = (byte)(i & 0x7f);
             }
@@ -47,47 +103,235 @@ public class DummyCam {
         }
     }
 
+    private static final String RESEND = "RESEND ";
+    // the largest datagram that can be sent (over IPv4).
+    static final int MAXDATAGRAM = 65507;
+    // the most rows an IMAGE can have (the row index is sent in two bytes, as index / 100, index % 100).
+    static final int MAXROWS = 255 * 100 + 99;
+    // the largest row, with room for the tag in front of it.
+    static final int MAXROWSIZE = MAXDATAGRAM - CameraCommands.TAG_LENGTH;
+    // how many client/tag responses to remember for RESEND requests.
+    static final int HISTORY = 4096;
+
     private final int port;
+    // the chance of 'losing' the response to a command.
+    private volatile double errorRate = 0.1;
+    private volatile boolean verbose = true;
+    // the IMAGE response, the damage done to each datagram sent, and the pace they are sent at (null for none).
+    private volatile byte[][] image = IMAGEDATA;
+    private volatile Impairment impairment = null;
+    private volatile Pacer pacer = null;
+    // the recorded frames to send for IMAGE, instead of the image (null for none).
+    private volatile FrameRecording recording = null;
+    // what has been sent (datagrams that were lost on purpose are not counted).
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    // the last response to each client (and tag), most recent last.
+    private final Map<String, Reply> history = new LinkedHashMap<String, Reply>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Reply> eldest) {
+            return size() > HISTORY;
+        }
+    };
+    
     public DummyCam(int port) {
         this.port = port;
     }
     
+    /**
+     * @param errorRate the chance (0.0 to 1.0) that a command gets no response at all (see loseResponse).
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+    
+    /**
+     * @param verbose whether to log every command (which takes time, and skews benchmarks).
+     */
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+    
+    /**
+     * Change the dimensions of the IMAGE response (480 rows of 640 bytes by default).
+     * @param rows the number of rows (datagrams), at most MAXROWS (the row index must fit in two bytes).
+     * @param rowSize the bytes in each row, including the 2-byte row index.
+     */
+    void setImage(int rows, int rowSize) {
+        if (rows < 1 || rows > MAXROWS || rowSize < 2 || rowSize > MAXROWSIZE) {
+            throw new IllegalArgumentException("Cannot make an image of " + rows + " rows of " + rowSize + " bytes");
+        }
+        byte[][] data = new byte[rows][rowSize];
+        fill(data);
+        image = data;
+    }
+    
+    /**
+     * @param impairment the damage to do to each datagram sent, or null to send them all as they are.
+     */
+    void setImpairment(Impairment impairment) {
+        this.impairment = impairment;
+    }
+    
+    /**
+     * @param pacer the rate to send datagrams at, like a sensor's line rate, or null to send them as fast as
+     * the socket takes them.
+     */
+    void setPacer(Pacer pacer) {
+        this.pacer = pacer;
+    }
+    
+    /**
+     * @param recording the frames to send for IMAGE, one for each command in turn, or null to send the image.
+     */
+    void setRecording(FrameRecording recording) {
+        this.recording = recording;
+    }
+    
     
     
+    /**
+     * <pre>
+     * java -cp bin camera.DummyCam [-port p] [-senders n] [-error rate] [-impair description] [-pace bytesPerSecond[:datagramsPerSecond[:burstMicros]]]
+     *             [-frames recording[:rows:rowSize]]
+     * </pre>
+     * With senders, clients are served concurrently (see serve), otherwise one command at a time. The
+     * impairment is described as for Impairment.parse, like "seed=7,burst=0.01:0.3,delay=2:1", or
+     * "trace=plant.csv" to replay a recorded trace. The error rate is 0.1 by default, but 0 with an impairment,
+     * whose damage should be all there is (unless -error says otherwise, when the errors are seeded too). The
+     * frames are a FrameRecording (of 480 rows of 640 bytes by default).
+     */
     public static void main(String[] args) throws IOException {
-        DummyCam cam = new DummyCam(12345);
-        cam.listen();
+        int port = 12345;
+        int senders = 0;
+        double error = -1.0;
+        Impairment impairment = null;
+        Pacer pacer = null;
+        FrameRecording recording = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-senders":
+                    senders = Integer.parseInt(args[++i]);
+                    break;
+                case "-error":
+                    error = Double.parseDouble(args[++i]);
+                    break;
+                case "-impair":
+                    impairment = Impairment.parse(args[++i]);
+                    break;
+                case "-pace":
+                    pacer = Pacer.parse(args[++i]);
+                    break;
+                case "-frames":
+                    recording = openRecording(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        DummyCam cam = new DummyCam(port);
+        if (error >= 0.0 || impairment != null) {
+            cam.setErrorRate(Math.max(0.0, error));
+        }
+        if (impairment != null) {
+            AsyncLog.info("impairment {}").arg(impairment).publish();
+            cam.setImpairment(impairment);
+        }
+        if (pacer != null) {
+            AsyncLog.info("paced at {}").arg(pacer).publish();
+            cam.setPacer(pacer);
+        }
+        if (recording != null) {
+            AsyncLog.info("IMAGE from {}").arg(recording).publish();
+            cam.setRecording(recording);
+        }
+        if (senders > 0) {
+            cam.serve(senders);
+        } else {
+            cam.listen();
+        }
+    }
+    
+    /**
+     * Map a recording from a description, path[:rows:rowSize] (480 rows of 640 bytes by default).
+     */
+    static FrameRecording openRecording(String description) throws IOException {
+        String[] v = description.split(":");
+        if (v.length == 3) {
+            return FrameRecording.open(Paths.get(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2]));
+        }
+        return FrameRecording.open(Paths.get(description), IMAGEDATA.length, IMAGEDATA[0].length);
+    }
+    
+    /**
+     * Serve commands from any number of clients at once, taking turns between their responses, rather than
+     * one command at a time (see DummyCamServer). Runs on the calling thread, and never returns.
+     * @param senders the number of threads sending responses.
+     */
+    void serve(int senders) throws IOException {
+        DummyCamServer server = new DummyCamServer(senders);
+        server.add(this);
+        server.run();
     }
 
 
 
-    private void listen() throws IOException {
+    void listen() throws IOException {
         
         DatagramChannel channel = DatagramChannel.open();
         channel.bind(new InetSocketAddress(port));
-        log("bound to " + port);
+        AsyncLog.info("bound to {}").arg(port).publish();
         SocketAddress remote = null;
-        final byte[] backing = new byte[2048];
+        final byte[] backing = new byte[MAXDATAGRAM];
         ByteBuffer buffer = ByteBuffer.wrap(backing);
+        // responses are put together off the heap, as recorded frames are.
+        final ByteBuffer out = ByteBuffer.allocateDirect(MAXDATAGRAM);
         while ((remote = channel.receive(buffer)) != null) {
             buffer.flip();
             String command = new String(backing, 0, buffer.limit(), StandardCharsets.US_ASCII);
-            // about a 10% chance of error.
-            boolean error = Math.random() < 0.1;
-            Command cmd = getCommand(command);
-            if (!error && cmd != null) {
-                int tmt = 0;
-                int cnt = 0;
-                for (byte[] row : cmd.getResponse()) {
-                    buffer.clear();
-                    buffer.put(row);
-                    buffer.flip();
-                    cnt += channel.send(buffer, remote);
-                    tmt++;
+            // tagged commands look like 17:IMAGE, and the tag is echoed on each response datagram.
+            int tag = getTag(command);
+            String untagged = tag < 0 ? command : command.substring(command.indexOf(':') + 1);
+            // by default, about a 10% chance of error.
+            boolean error = loseResponse();
+            if (isResend(untagged)) {
+                // re-send parts of the previous response to the same client and tag.
+                Reply reply = history.get(remote + "#" + tag);
+                if (!error && reply != null) {
+                    int tmt = 0;
+                    int cnt = 0;
+                    int[] ranges = getRanges(untagged, reply.size());
+                    for (int r = 0; r < ranges.length; r += 2) {
+                        cnt += send(channel, remote, tag, out, reply, ranges[r], ranges[r + 1]);
+                        tmt += Math.max(0, ranges[r + 1] - ranges[r] + 1);
+                    }
+                    if (verbose) {
+                        AsyncLog.info("{} from {} Sent {} bytes in {} datagrams").arg(command).arg(remote).arg(cnt).arg(tmt).publish();
+                    }
+                } else {
+                    AsyncLog.info("{} error!").arg(command).publish();
+                }
+                buffer.clear();
+                continue;
+            }
+            Command cmd = getCommand(untagged);
+            Reply reply = cmd == null ? null : getReply(cmd);
+            if (reply != null) {
+                // even if the response is 'lost', the camera remembers it, and can re-send it.
+                history.put(remote + "#" + tag, reply);
+            }
+            if (!error && reply != null) {
+                int tmt = reply.size();
+                int cnt = send(channel, remote, tag, out, reply, 0, tmt - 1);
+                if (verbose) {
+                    AsyncLog.info("{} from {} Sent {} bytes in {} datagrams").arg(command).arg(remote).arg(cnt).arg(tmt).publish();
                 }
-                log (command + " from " + remote + " Sent " + cnt + " bytes in " + tmt + " datagrams");
             } else {
-                log (command + " error!");
+                AsyncLog.info("{} error!").arg(command).publish();
             }
             buffer.clear();
         }
@@ -95,20 +339,185 @@ public class DummyCam {
 
 
 
-    private static final Command getCommand(String command) {
-        for (Command cmd : Command.values()) {
-            if (cmd.name().equals(command)) {
-                return cmd;
+    /**
+     * Parse the ranges of a RESEND command.
+     * @param resend the (untagged) command, like "RESEND 3-7,10-10".
+     * @param count the number of datagrams in the response (ranges are clipped to it).
+     * @return the inclusive ranges, as pairs of from and to (bad ranges are left out).
+     */
+    static int[] getRanges(String resend, int count) {
+        String[] parts = resend.substring(RESEND.length()).split(",");
+        int[] ranges = new int[parts.length * 2];
+        int n = 0;
+        for (String range : parts) {
+            int dash = range.indexOf('-');
+            try {
+                ranges[n] = Math.max(0, Integer.parseInt(range.substring(0, dash).trim()));
+                ranges[n + 1] = Math.min(Integer.parseInt(range.substring(dash + 1).trim()), count - 1);
+                n += 2;
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                AsyncLog.warn("Bad range {} in {}").arg(range).arg(resend).publish();
             }
         }
-        return null;
+        return Arrays.copyOf(ranges, n);
+    }
+    
+    static boolean isResend(String untagged) {
+        return untagged.startsWith(RESEND);
+    }
+    
+    int getPort() {
+        return port;
+    }
+    
+    /**
+     * Count the datagrams sent for a row (with an impairment, none if it was lost or held back, or more than
+     * one with those held back before, and duplicates).
+     * @param datagrams the number of datagrams.
+     * @param bytes their total size (0 if none was actually sent).
+     */
+    void sent(int datagrams, int bytes) {
+        if (bytes > 0) {
+            datagramsSent.add(datagrams);
+            bytesSent.add(bytes);
+        }
+    }
+    
+    /**
+     * Decide whether to lose the whole response to a command (a camera 'error'), with the error rate. With an
+     * impairment, the decision is one of its seeded decisions, so an impaired run can be repeated.
+     */
+    boolean loseResponse() {
+        final Impairment damage = impairment;
+        if (damage == null) {
+            return Math.random() < errorRate;
+        }
+        synchronized (damage) {
+            return damage.loseResponse(errorRate);
+        }
+    }
+    
+    /**
+     * @return the number of datagrams sent so far.
+     */
+    long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+    
+    /**
+     * @return the number of bytes sent so far.
+     */
+    long getBytesSent() {
+        return bytesSent.sum();
+    }
+    
+    boolean isVerbose() {
+        return verbose;
+    }
+    
+    Impairment getImpairment() {
+        return impairment;
+    }
+    
+    Pacer getPacer() {
+        return pacer;
+    }
+    
+    byte[][] getResponse(Command cmd) {
+        return cmd == Command.IMAGE ? image : cmd.getResponse();
+    }
+    
+    /**
+     * @return the response to a command: for IMAGE, the next recorded frame if there is a recording.
+     */
+    Reply getReply(Command cmd) {
+        FrameRecording frames = recording;
+        if (cmd == Command.IMAGE && frames != null) {
+            return new Reply(frames.getFrame(frames.next()), frames.getRows(), frames.getRowSize());
+        }
+        return new Reply(getResponse(cmd));
+    }
+    
+    /**
+     * Make the datagram for a row of a response. A row from memory, or a tagged row, is put in the buffer (after
+     * the tag). An untagged recorded row is not copied at all: the frame itself is positioned on the row, so it
+     * is sent straight from the mapping. Only one thread may send a Reply at a time.
+     * @param buffer a buffer for the datagram (direct, to keep recorded rows off the heap).
+     * @return the datagram, the buffer or the frame.
+     */
+    static ByteBuffer datagram(Reply reply, int row, int tag, ByteBuffer buffer) {
+        ByteBuffer frame = reply.frame;
+        if (frame != null) {
+            frame.clear();
+            frame.position(row * reply.rowSize).limit((row + 1) * reply.rowSize);
+            if (tag < 0) {
+                return frame;
+            }
+        }
+        buffer.clear();
+        if (tag >= 0) {
+            buffer.putShort((short)tag);
+        }
+        if (frame != null) {
+            buffer.put(frame);
+        } else {
+            buffer.put(reply.rows[row]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private int send(DatagramChannel channel, SocketAddress remote, int tag, ByteBuffer buffer, Reply reply, int from, int to) throws IOException {
+        Impairment damage = impairment;
+        Pacer pace = pacer;
+        int cnt = 0;
+        for (int i = from; i <= to; i++) {
+            ByteBuffer datagram = datagram(reply, i, tag, buffer);
+            if (pace != null) {
+                pace.acquire(datagram.remaining());
+            }
+            if (damage == null) {
+                int sent = channel.send(datagram, remote);
+                sent(1, sent);
+                cnt += sent;
+            } else {
+                int sent = damage.send(channel, datagram, remote);
+                sent(damage.getHanded(), sent);
+                cnt += sent;
+            }
+        }
+        if (damage != null) {
+            int flushed = damage.flush(channel);
+            sent(damage.getHanded(), flushed);
+            cnt += flushed;
+        }
+        return cnt;
     }
 
 
 
-    private static void log(String message) {
-        System.out.println(message);
-        
+    static int getTag(String command) {
+        int colon = command.indexOf(':');
+        if (colon <= 0) {
+            return -1;
+        }
+        try {
+            int tag = Integer.parseInt(command.substring(0, colon));
+            return tag >= 0 && tag <= 0xffff ? tag : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+
+    static Command getCommand(String command) {
+        for (Command cmd : Command.values()) {
+            if (cmd.name().equals(command)) {
+                return cmd;
+            }
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,415 @@
+package camera;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Serves any number of DummyCams, to any number of clients at once, without one slow (or large) response
+ * holding up the others.
+ * 
+ * DummyCam.listen() serves one command at a time, and sends every datagram of a response before it reads
+ * the next command, so several controllers are served one after the other. Here, one thread reads the
+ * commands from every camera's (non-blocking) channel on a selector, and hands each to one of a number of
+ * sender threads, chosen by the client's address, so each client is always served by the same sender. Each
+ * sender keeps the state of its clients (their responses in progress, and their last response for each tag,
+ * for RESEND), and takes turns between the clients that have responses in progress, sending a few datagrams
+ * of each in turn.
+ * 
+ * The cameras' settings (error rate, image, impairment, pacing, logging) apply as they do for listen(). An
+ * Impairment is shared by the senders, so its damage is only repeatable with one sender. A paced client
+ * waits its turn without holding up the others: its sender moves on, and only waits (parking, then
+ * spinning) when every client it has is waiting for its pace.
+ */
+final class DummyCamServer implements Runnable, Closeable {
+    
+    // the datagrams sent to one client before moving on to the next.
+    private static final int QUANTUM = 8;
+    // how long a sender waits when the socket send buffer is full.
+    private static final long BACKOFF = TimeUnit.MICROSECONDS.toNanos(50);
+    
+    /**
+     * A command, as it arrived, on its way to a sender.
+     */
+    private static final class Request {
+        private final DummyCam cam;
+        private final DatagramChannel channel;
+        private final SocketAddress remote;
+        private final String command;
+        
+        Request(DummyCam cam, DatagramChannel channel, SocketAddress remote, String command) {
+            this.cam = cam;
+            this.channel = channel;
+            this.remote = remote;
+            this.command = command;
+        }
+    }
+    
+    /**
+     * Datagrams (some ranges of rows) still to be sent to a client.
+     */
+    private static final class Response {
+        private final String command;
+        private final DummyCam.Reply reply;
+        private final int tag;
+        // the inclusive ranges of rows to send, as pairs of from and to.
+        private final int[] ranges;
+        private int range = 0;
+        private int next;
+        private int bytes = 0;
+        private int datagrams = 0;
+        
+        Response(String command, DummyCam.Reply reply, int tag, int[] ranges) {
+            this.command = command;
+            this.reply = reply;
+            this.tag = tag;
+            this.ranges = ranges;
+            this.next = ranges.length > 0 ? ranges[0] : 0;
+        }
+        
+        /**
+         * @return true if there is nothing more to send.
+         */
+        boolean isDone() {
+            while (range < ranges.length && next > ranges[range + 1]) {
+                range += 2;
+                if (range < ranges.length) {
+                    next = ranges[range];
+                }
+            }
+            return range >= ranges.length;
+        }
+    }
+    
+    /**
+     * One client of one camera.
+     */
+    private static final class Client {
+        private final DummyCam cam;
+        private final DatagramChannel channel;
+        private final SocketAddress remote;
+        private final Queue<Response> responses = new ArrayDeque<>();
+        // the last response for each tag (-1 for untagged), for RESEND.
+        private final Map<Integer, DummyCam.Reply> history = new HashMap<>();
+        // set while the client is in its sender's ready queue.
+        private boolean ready = false;
+        // set when the next datagram has been paced, to go at notBefore.
+        private boolean reserved = false;
+        private long notBefore;
+        
+        Client(DummyCam cam, DatagramChannel channel, SocketAddress remote) {
+            this.cam = cam;
+            this.channel = channel;
+            this.remote = remote;
+        }
+    }
+    
+    /**
+     * A thread that sends the responses to its share of the clients, taking turns between them.
+     */
+    private final class Sender implements Runnable {
+        
+        private final Queue<Request> inbox = new ConcurrentLinkedQueue<>();
+        private final Map<DatagramChannel, Map<SocketAddress, Client>> clients = new HashMap<>();
+        // the clients with responses to send, in turn.
+        private final Queue<Client> ready = new ArrayDeque<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(DummyCam.MAXDATAGRAM);
+        private final Thread thread;
+        // set by send when the client is waiting for its pace, and how many in a row have been.
+        private boolean stalled = false;
+        private int stalls = 0;
+        private long earliest;
+        
+        Sender(String name) {
+            thread = new Thread(this, name);
+            // We are a daemon thread, so if the JVM dies, we do too.
+            thread.setDaemon(true);
+        }
+        
+        void add(Request request) {
+            inbox.add(request);
+            LockSupport.unpark(thread);
+        }
+        
+        @Override
+        public void run() {
+            while (!closed) {
+                Request request;
+                while ((request = inbox.poll()) != null) {
+                    accept(request);
+                }
+                Client client = ready.poll();
+                if (client == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    if (send(client)) {
+                        // more to send, after the others have had their turn.
+                        ready.add(client);
+                    } else {
+                        client.ready = false;
+                    }
+                    if (!stalled) {
+                        stalls = 0;
+                    } else {
+                        stalled = false;
+                        if (stalls++ == 0 || client.notBefore - earliest < 0) {
+                            earliest = client.notBefore;
+                        }
+                        if (stalls >= ready.size()) {
+                            // every client is waiting for its pace, wait for the first.
+                            Pacer.pause(earliest);
+                            stalls = 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    AsyncLog.warn("Unable to respond to {}: {}").arg(client.remote).arg(e).publish();
+                    client.responses.clear();
+                    client.ready = false;
+                }
+            }
+        }
+        
+        /**
+         * Work out the response to a command, and queue it for the client.
+         */
+        private void accept(Request request) {
+            Map<SocketAddress, Client> byRemote = clients.get(request.channel);
+            if (byRemote == null) {
+                // forget the clients that have not been heard from for longest (a client in progress still finishes).
+                byRemote = new LinkedHashMap<SocketAddress, Client>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<SocketAddress, Client> eldest) {
+                        return size() > DummyCam.HISTORY;
+                    }
+                };
+                clients.put(request.channel, byRemote);
+            }
+            Client client = byRemote.get(request.remote);
+            if (client == null) {
+                client = new Client(request.cam, request.channel, request.remote);
+                byRemote.put(request.remote, client);
+            }
+            
+            final DummyCam cam = client.cam;
+            final String command = request.command;
+            int tag = DummyCam.getTag(command);
+            String untagged = tag < 0 ? command : command.substring(command.indexOf(':') + 1);
+            boolean error = cam.loseResponse();
+            Response response = null;
+            if (DummyCam.isResend(untagged)) {
+                DummyCam.Reply reply = client.history.get(tag);
+                if (!error && reply != null) {
+                    response = new Response(command, reply, tag, DummyCam.getRanges(untagged, reply.size()));
+                }
+            } else {
+                DummyCam.Command cmd = DummyCam.getCommand(untagged);
+                DummyCam.Reply reply = cmd == null ? null : cam.getReply(cmd);
+                if (reply != null) {
+                    // even if the response is 'lost', the camera remembers it, and can re-send it.
+                    client.history.put(tag, reply);
+                }
+                if (!error && reply != null) {
+                    response = new Response(command, reply, tag, new int[] {0, reply.size() - 1});
+                }
+            }
+            if (response == null) {
+                AsyncLog.info("{} error!").arg(command).publish();
+                return;
+            }
+            client.responses.add(response);
+            if (!client.ready) {
+                client.ready = true;
+                ready.add(client);
+            }
+        }
+        
+        /**
+         * Send the client's next few datagrams.
+         * @return true if it has more to send.
+         */
+        private boolean send(Client client) throws IOException {
+            final Impairment damage = client.cam.getImpairment();
+            final Pacer pacer = client.cam.getPacer();
+            int quantum = QUANTUM;
+            Response response;
+            while (quantum > 0 && (response = client.responses.peek()) != null) {
+                if (!response.isDone()) {
+                    final ByteBuffer datagram = DummyCam.datagram(response.reply, response.next, response.tag, buffer);
+                    if (pacer != null) {
+                        if (!client.reserved) {
+                            synchronized (pacer) {
+                                client.notBefore = pacer.reserve(datagram.remaining());
+                            }
+                            client.reserved = true;
+                        }
+                        if (client.notBefore - System.nanoTime() > 0) {
+                            stalled = true;
+                            return true;
+                        }
+                    }
+                    int sent;
+                    if (damage == null) {
+                        sent = client.channel.send(datagram, client.remote);
+                        if (sent == 0) {
+                            // the send buffer is full, try again after the other clients.
+                            LockSupport.parkNanos(BACKOFF);
+                            return true;
+                        }
+                        client.cam.sent(1, sent);
+                    } else {
+                        synchronized (damage) {
+                            sent = damage.send(client.channel, datagram, client.remote);
+                            client.cam.sent(damage.getHanded(), sent);
+                        }
+                    }
+                    client.reserved = false;
+                    response.next++;
+                    response.bytes += sent;
+                    response.datagrams++;
+                    quantum--;
+                    continue;
+                }
+                client.responses.poll();
+                if (damage != null) {
+                    int flushed;
+                    synchronized (damage) {
+                        flushed = damage.flush(client.channel);
+                        client.cam.sent(damage.getHanded(), flushed);
+                    }
+                    response.bytes += flushed;
+                }
+                if (client.cam.isVerbose()) {
+                    AsyncLog.info("{} from {} Sent {} bytes in {} datagrams").arg(response.command).arg(client.remote)
+                            .arg(response.bytes).arg(response.datagrams).publish();
+                }
+            }
+            return !client.responses.isEmpty();
+        }
+    }
+    
+    private final Selector selector;
+    private final Sender[] senders;
+    // channels to register, handed to the selecting thread.
+    private final Queue<DummyCam> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(DummyCam.MAXDATAGRAM);
+    private final Consumer<SelectionKey> dispatch = new Consumer<SelectionKey>() {
+        @Override
+        public void accept(SelectionKey key) {
+            if (key.isValid() && key.isReadable()) {
+                receive((DatagramChannel)key.channel(), (DummyCam)key.attachment());
+            }
+        }
+    };
+    private volatile boolean closed = false;
+    
+    /**
+     * @param nsenders the number of threads sending responses.
+     */
+    DummyCamServer(int nsenders) throws IOException {
+        if (nsenders < 1) {
+            throw new IllegalArgumentException("Need at least one sender, not " + nsenders);
+        }
+        selector = Selector.open();
+        senders = new Sender[nsenders];
+        for (int i = 0; i < nsenders; i++) {
+            senders[i] = new Sender("DummyCam Sender " + i);
+        }
+        for (Sender sender : senders) {
+            sender.thread.start();
+        }
+    }
+    
+    /**
+     * Serve a camera, on its port.
+     */
+    void add(DummyCam cam) {
+        pending.add(cam);
+        selector.wakeup();
+    }
+    
+    /**
+     * Read and dispatch commands until closed (on the calling thread).
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                DummyCam cam;
+                while ((cam = pending.poll()) != null) {
+                    bind(cam);
+                }
+                selector.select(dispatch);
+            } catch (IOException | RuntimeException e) {
+                AsyncLog.error("DummyCam server failed to select").trace(e).publish();
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            AsyncLog.warn("Unable to close the DummyCam server: {}").arg(e).publish();
+        }
+    }
+    
+    private void bind(DummyCam cam) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(cam.getPort()));
+            channel.register(selector, SelectionKey.OP_READ, cam);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (cam.isVerbose()) {
+            AsyncLog.info("bound to {}").arg(cam.getPort()).publish();
+        }
+    }
+    
+    /**
+     * Read every command waiting on a channel, and hand each to the sender for its client.
+     */
+    private void receive(DatagramChannel channel, DummyCam cam) {
+        try {
+            SocketAddress remote;
+            buffer.clear();
+            while ((remote = channel.receive(buffer)) != null) {
+                String command = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+                senders[Math.floorMod(remote.hashCode(), senders.length)].add(new Request(cam, channel, remote, command));
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("Unable to receive on port {}: {}").arg(cam.getPort()).arg(e).publish();
+        }
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        for (Sender sender : senders) {
+            LockSupport.unpark(sender.thread);
+        }
+    }
+    
+}
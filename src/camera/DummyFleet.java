@@ -0,0 +1,173 @@
+package camera;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a fleet of cameras, thousands of DummyCams in one JVM, to load-test a controller host against
+ * many cameras at once.
+ * 
+ * Each camera listens on its own port, from 'port' up, and all of them are served by one DummyCamServer:
+ * one thread reading commands from every camera, and a few threads sending the responses. Every 'report'
+ * seconds the send rate of the whole fleet is printed, with the spread of the cameras' rates (and with
+ * -detail, every camera's rate), and the datagrams the fleet damaged with -impair:
+ * 
+ * <pre>
+ * java -cp bin camera.DummyFleet [-port p] [-cameras n] [-senders n] [-error rate] [-report seconds] [-detail]
+ *             [-impair description] [-pace bytesPerSecond[:datagramsPerSecond[:burstMicros]]] [-frames recording[:rows:rowSize]]
+ * </pre>
+ * 
+ * With -impair (described as for Impairment.parse), each camera damages its datagrams in the same way, but
+ * from its own seed (the description's seed plus the camera's index), so the cameras' losses are not in step.
+ * The error rate (lost responses) is then 0 unless -error is given, and drawn from the same seeds. The
+ * datagrams any camera delays (or rate-limits) are sent by one shared thread. With -pace, each camera sends
+ * at most that rate (see Pacer), and the senders take turns between the cameras while they wait. With
+ * -frames, every camera sends the frames of one FrameRecording, mapped once, and each IMAGE (from any
+ * camera) gets the next frame.
+ * 
+ * Each camera needs a socket (a file descriptor), so 5000 cameras need ulimit -n above 5000. The matching
+ * load can come from CameraTest, with -cameras and -ports set to the number of cameras.
+ */
+public class DummyFleet {
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 12345;
+        int cameras = 100;
+        int senders = 2;
+        double error = -1.0;
+        int report = 5;
+        boolean detail = false;
+        String impair = null;
+        String pace = null;
+        FrameRecording recording = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-cameras":
+                    cameras = Integer.parseInt(args[++i]);
+                    break;
+                case "-senders":
+                    senders = Integer.parseInt(args[++i]);
+                    break;
+                case "-error":
+                    error = Double.parseDouble(args[++i]);
+                    break;
+                case "-report":
+                    report = Integer.parseInt(args[++i]);
+                    break;
+                case "-detail":
+                    detail = true;
+                    break;
+                case "-impair":
+                    impair = args[++i];
+                    break;
+                case "-pace":
+                    pace = args[++i];
+                    break;
+                case "-frames":
+                    recording = DummyCam.openRecording(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (cameras < 1 || port + cameras - 1 > 0xffff) {
+            throw new IllegalArgumentException("Cannot run " + cameras + " cameras from port " + port);
+        }
+        
+        if (error < 0.0) {
+            // an impaired fleet does only the damage it is told to.
+            error = impair == null ? 0.1 : 0.0;
+        }
+        // check the description once, before making an Impairment for every camera.
+        final long seed = impair == null ? 0 : Impairment.parse(impair).getSeed();
+        final DummyCamServer server = new DummyCamServer(senders);
+        final DummyCam[] cams = new DummyCam[cameras];
+        for (int i = 0; i < cameras; i++) {
+            cams[i] = new DummyCam(port + i);
+            cams[i].setErrorRate(error);
+            cams[i].setVerbose(false);
+            if (impair != null) {
+                // the last seed in the description wins.
+                cams[i].setImpairment(Impairment.parse(impair + ",seed=" + (seed + i)));
+            }
+            if (pace != null) {
+                cams[i].setPacer(Pacer.parse(pace));
+            }
+            cams[i].setRecording(recording);
+            server.add(cams[i]);
+        }
+        Thread selector = new Thread(server, "DummyFleet Selector");
+        selector.setDaemon(true);
+        selector.start();
+        System.out.printf(Locale.ROOT, "# %d cameras on ports %d-%d, %d senders, error rate %.3f%s%s%s%n",
+                cameras, port, port + cameras - 1, senders, error, impair == null ? "" : ", impairment " + impair,
+                pace == null ? "" : ", paced at " + pace, recording == null ? "" : ", IMAGE from " + recording);
+        
+        final PrintStream out = System.out;
+        final long[] datagrams = new long[cameras];
+        final long[] bytes = new long[cameras];
+        final double[] rates = new double[cameras];
+        // the datagrams lost, reordered, duplicated and truncated by every camera's impairment, so far.
+        final long[] damaged = new long[4];
+        final long[] total = new long[4];
+        long last = System.nanoTime();
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(report));
+            final long now = System.nanoTime();
+            final double seconds = (now - last) / 1e9;
+            last = now;
+            long totalDatagrams = 0;
+            long totalBytes = 0;
+            int active = 0;
+            Arrays.fill(total, 0L);
+            for (int i = 0; i < cameras; i++) {
+                long d = cams[i].getDatagramsSent();
+                long b = cams[i].getBytesSent();
+                rates[i] = (d - datagrams[i]) / seconds;
+                totalDatagrams += d - datagrams[i];
+                totalBytes += b - bytes[i];
+                if (d > datagrams[i]) {
+                    active++;
+                }
+                if (detail) {
+                    out.printf(Locale.ROOT, "  camera %d: %.1f datagrams/s %.3f MB/s%n",
+                            cams[i].getPort(), rates[i], (b - bytes[i]) / seconds / (1024 * 1024));
+                }
+                datagrams[i] = d;
+                bytes[i] = b;
+                Impairment damage = cams[i].getImpairment();
+                if (damage != null) {
+                    total[0] += damage.getDropped();
+                    total[1] += damage.getReordered();
+                    total[2] += damage.getDuplicated();
+                    total[3] += damage.getTruncated();
+                }
+            }
+            Arrays.sort(rates);
+            out.printf(Locale.ROOT, "%d active, %.1f datagrams/s %.2f MB/s; per camera datagrams/s min %.1f p50 %.1f p99 %.1f max %.1f%n",
+                    active, totalDatagrams / seconds, totalBytes / seconds / (1024 * 1024),
+                    rates[0], percentile(rates, 0.50), percentile(rates, 0.99), rates[cameras - 1]);
+            if (impair != null) {
+                out.printf(Locale.ROOT, "  impaired datagrams/s lost %.1f reordered %.1f duplicated %.1f truncated %.1f%n",
+                        (total[0] - damaged[0]) / seconds, (total[1] - damaged[1]) / seconds,
+                        (total[2] - damaged[2]) / seconds, (total[3] - damaged[3]) / seconds);
+                System.arraycopy(total, 0, damaged, 0, total.length);
+            }
+        }
+    }
+    
+    /**
+     * @return the value at the given fraction of the sorted values.
+     */
+    private static double percentile(double[] sorted, double fraction) {
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+    
+}
@@ -0,0 +1,194 @@
+package camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles the datagrams of one response in to a single frame.
+ * 
+ * Each datagram is placed at the offset given by its sequence number, regardless of the
+ * order in which they arrive. A bitmap tracks which datagrams have been received, so
+ * duplicates are dropped, and the frame is complete only when every datagram is present.
+ * 
+ * The frame is a direct buffer, and datagrams are normally read straight in to it: the
+ * channel reads in to the landing slot (the first missing datagram), which is where the
+ * next datagram belongs when they arrive in order. Only a datagram that arrives out of
+ * order is moved (copied) to its real slot afterwards.
+ * 
+ * The frame buffer comes from a FramePool, and its capacity may be larger than the frame.
+ */
+final class FrameAssembler {
+    
+    private final int size;
+    private final int count;
+    private final ByteBuffer frame;
+    // views of the frame, reused so that receiving does not allocate.
+    private final ByteBuffer landing;
+    private final ByteBuffer source;
+    private final long[] received;
+    private int receivedCount = 0;
+    // the first missing sequence, which is where datagrams are read to.
+    private int firstMissing = 0;
+    
+    FrameAssembler(int size, int count, FramePool pool) {
+        this.size = size;
+        this.count = count;
+        this.frame = pool.acquire(size * count);
+        this.landing = frame.duplicate();
+        this.source = frame.duplicate();
+        this.received = new long[(count + 63) >>> 6];
+    }
+    
+    /**
+     * @return the sequence number of the slot the next datagram should be read in to.
+     */
+    int getLanding() {
+        return firstMissing;
+    }
+    
+    /**
+     * @return the slot the next datagram should be read in to (valid until the next call to place or accept).
+     */
+    ByteBuffer landingSlot() {
+        int offset = firstMissing * size;
+        landing.limit(offset + size).position(offset);
+        return landing;
+    }
+    
+    /**
+     * A datagram has been read in to the landing slot, record it, and move it to its real slot if needed.
+     * @param sequence the sequence number of the datagram.
+     * @return true if the datagram was new, false if it was a duplicate or out of range.
+     */
+    boolean place(int sequence) {
+        if (!acceptable(sequence)) {
+            // the landing slot is still missing, whatever was read there will be overwritten.
+            return false;
+        }
+        if (sequence != firstMissing) {
+            // out of order, move it to where it belongs.
+            int from = firstMissing * size;
+            source.limit(from + size).position(from);
+            int to = sequence * size;
+            landing.limit(to + size).position(to);
+            landing.put(source);
+        }
+        mark(sequence);
+        return true;
+    }
+    
+    /**
+     * Copy a datagram in to the frame.
+     * @param datagram the buffer with the datagram payload between position and limit. The position is advanced past the payload if it is accepted.
+     * @param sequence the sequence number of the datagram.
+     * @return true if the datagram was new, false if it was a duplicate or out of range.
+     */
+    boolean accept(ByteBuffer datagram, int sequence) {
+        if (datagram.remaining() < size || !acceptable(sequence)) {
+            return false;
+        }
+        int to = sequence * size;
+        landing.limit(to + size).position(to);
+        int limit = datagram.limit();
+        datagram.limit(datagram.position() + size);
+        landing.put(datagram);
+        datagram.limit(limit);
+        mark(sequence);
+        return true;
+    }
+    
+    private boolean acceptable(int sequence) {
+        return sequence >= 0 && sequence < count && !has(sequence);
+    }
+    
+    private void mark(int sequence) {
+        received[sequence >>> 6] |= 1L << sequence;
+        receivedCount++;
+        if (sequence == firstMissing) {
+            int next = nextMissing(sequence + 1);
+            // when complete, leave the landing on a valid slot.
+            firstMissing = next < 0 ? 0 : next;
+        }
+    }
+    
+    /**
+     * @param sequence the datagram to check.
+     * @return true if that datagram has been received.
+     */
+    boolean has(int sequence) {
+        return (received[sequence >>> 6] & (1L << sequence)) != 0;
+    }
+    
+    /**
+     * Find the first datagram that has not been received yet.
+     * @param from the sequence number to start searching from.
+     * @return the first missing sequence number at or after from, or -1 if there are none.
+     */
+    int nextMissing(int from) {
+        if (from >= count) {
+            return -1;
+        }
+        for (int word = from >>> 6; word < received.length; word++) {
+            long missing = ~received[word];
+            if (word == from >>> 6) {
+                // ignore the bits before 'from'
+                missing &= -1L << from;
+            }
+            if (missing != 0) {
+                int sequence = (word << 6) + Long.numberOfTrailingZeros(missing);
+                return sequence < count ? sequence : -1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Describe the datagrams still missing as inclusive ranges, like "3-7,10-10".
+     * @param maxRanges the most ranges to include (later gaps are left for another time).
+     * @return the missing ranges, or an empty string if the frame is complete.
+     */
+    String missingRanges(int maxRanges) {
+        StringBuilder sb = new StringBuilder();
+        int ranges = 0;
+        int from = nextMissing(0);
+        while (from >= 0 && ranges < maxRanges) {
+            int to = from;
+            while (to + 1 < count && !has(to + 1)) {
+                to++;
+            }
+            if (ranges > 0) {
+                sb.append(',');
+            }
+            sb.append(from).append('-').append(to);
+            ranges++;
+            from = nextMissing(to + 1);
+        }
+        return sb.toString();
+    }
+    
+    boolean isComplete() {
+        return receivedCount == count;
+    }
+    
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * @return the whole frame (the datagram at sequence n starts at index n * size, the limit is the end). Absolute reads only.
+     */
+    ByteBuffer getFrame() {
+        return frame;
+    }
+    
+    /**
+     * @return a copy of the valid data received so far, up to the first missing datagram.
+     */
+    byte[] soFar() {
+        int missing = nextMissing(0);
+        byte[] data = new byte[missing < 0 ? frame.limit() : missing * size];
+        source.limit(data.length).position(0);
+        source.get(data);
+        return data;
+    }
+    
+}
@@ -0,0 +1,199 @@
+package camera;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of (direct) frame buffers, so that receiving a large response does not need a
+ * large allocation each time.
+ * 
+ * Buffers are grouped in size classes, four per power of two, so a frame never wastes more
+ * than a quarter of its buffer, and the few distinct command sizes map to a few classes.
+ * Frames larger than the largest class are simply allocated (and garbage collected).
+ * 
+ * Buffers are handed out in Results through a reference-counted Lease, and come back here
+ * when the last reference is released. Run with -Dcamera.pool.debug=true to have
+ * leases that are garbage collected without being released reported, along with where
+ * they were created.
+ */
+final class FramePool {
+    
+    // the smallest class covers everything up to 2^MINSHIFT, the largest is 2^MAXSHIFT.
+    private static final int MINSHIFT = 6;
+    private static final int MAXSHIFT = 26;
+    // size classes per power of two.
+    private static final int STEPS = 4;
+    // the most idle buffers kept in each size class.
+    private static final int RETAIN = 64;
+    
+    static final boolean DEBUG = Boolean.getBoolean("camera.pool.debug");
+    
+    private static final FramePool SHARED = new FramePool(RETAIN);
+    
+    /**
+     * @return the pool shared by all cameras in this JVM.
+     */
+    static FramePool shared() {
+        return SHARED;
+    }
+    
+    /**
+     * A simple stack of idle buffers. Pushing and popping does not allocate.
+     */
+    private static final class SizeClass {
+        private final int capacity;
+        private final ByteBuffer[] idle;
+        private int count = 0;
+        
+        SizeClass(int capacity, int retain) {
+            this.capacity = capacity;
+            this.idle = new ByteBuffer[retain];
+        }
+        
+        synchronized ByteBuffer pop() {
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer buffer = idle[--count];
+            idle[count] = null;
+            return buffer;
+        }
+        
+        synchronized void push(ByteBuffer buffer) {
+            if (count < idle.length) {
+                idle[count++] = buffer;
+            }
+        }
+    }
+    
+    /**
+     * A reference-counted claim on a pooled buffer. The buffer goes back to the pool
+     * when the count drops to zero.
+     */
+    static final class Lease extends AtomicInteger implements Runnable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final FramePool pool;
+        private final ByteBuffer buffer;
+        // where the lease was created, in debug mode only.
+        private final Throwable origin;
+        
+        private Lease(FramePool pool, ByteBuffer buffer) {
+            super(1);
+            this.pool = pool;
+            this.buffer = buffer;
+            this.origin = DEBUG ? new Throwable("Frame buffer leased here") : null;
+        }
+        
+        void retain() {
+            int refs;
+            do {
+                refs = get();
+                if (refs <= 0) {
+                    throw new IllegalStateException("Frame buffer has already been released");
+                }
+            } while (!compareAndSet(refs, refs + 1));
+        }
+        
+        void release() {
+            int refs = decrementAndGet();
+            if (refs == 0) {
+                pool.release(buffer);
+            } else if (refs < 0) {
+                set(0);
+                throw new IllegalStateException("Frame buffer released too many times");
+            }
+        }
+        
+        boolean isReleased() {
+            return get() <= 0;
+        }
+        
+        /**
+         * Called (in debug mode) when the owner of the lease has been garbage collected.
+         */
+        @Override
+        public void run() {
+            if (!isReleased()) {
+                AsyncLog.error("LEAK: frame buffer of {} bytes was never released").arg(buffer.limit()).trace(origin).publish();
+            }
+        }
+    }
+    
+    private static final Cleaner LEAKS = DEBUG ? Cleaner.create() : null;
+    
+    private final SizeClass[] classes = new SizeClass[(MAXSHIFT - MINSHIFT) * STEPS];
+    
+    FramePool(int retain) {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(classCapacity(i), retain);
+        }
+    }
+    
+    /**
+     * @param bytes the size needed.
+     * @return the index of the smallest size class that holds that many bytes, or -1 if it is too large to pool.
+     */
+    static int sizeClass(int bytes) {
+        if (bytes <= 1 << MINSHIFT) {
+            return 0;
+        }
+        // 2^shift < bytes <= 2^(shift + 1)
+        int shift = 31 - Integer.numberOfLeadingZeros(bytes - 1);
+        if (shift >= MAXSHIFT) {
+            return -1;
+        }
+        long base = 1L << shift;
+        int step = (int)(((bytes - base) * STEPS + base - 1) / base) - 1;
+        return (shift - MINSHIFT) * STEPS + step;
+    }
+    
+    static int classCapacity(int index) {
+        int shift = MINSHIFT + index / STEPS;
+        int step = index % STEPS;
+        return (1 << shift) + (step + 1) * ((1 << shift) / STEPS);
+    }
+    
+    /**
+     * Get a buffer for a frame. The limit is set to the bytes needed, the capacity may be larger.
+     * @param bytes the size of the frame.
+     * @return a buffer, from the pool if possible.
+     */
+    ByteBuffer acquire(int bytes) {
+        int index = sizeClass(bytes);
+        ByteBuffer buffer = index < 0 ? null : classes[index].pop();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(index < 0 ? bytes : classes[index].capacity);
+        }
+        buffer.clear().limit(bytes);
+        return buffer;
+    }
+    
+    /**
+     * Return a buffer that is not needed any more (and is not leased).
+     * @param buffer a buffer from acquire.
+     */
+    void release(ByteBuffer buffer) {
+        int index = sizeClass(buffer.capacity());
+        if (index >= 0 && classes[index].capacity == buffer.capacity()) {
+            classes[index].push(buffer);
+        }
+    }
+    
+    /**
+     * Hand a buffer out to a consumer, the buffer comes back when the lease is released.
+     * @param buffer a buffer from acquire.
+     * @param owner the object whose life-time the lease is tied to (for leak detection).
+     * @return the lease, with one reference.
+     */
+    Lease lease(ByteBuffer buffer, Object owner) {
+        Lease lease = new Lease(this, buffer);
+        if (DEBUG) {
+            LEAKS.register(owner, lease);
+        }
+        return lease;
+    }
+    
+}
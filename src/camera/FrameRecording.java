@@ -0,0 +1,199 @@
+package camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recorded frames, for a DummyCam to send as its IMAGE responses, a frame for each IMAGE command, from the
+ * first again after the last.
+ * 
+ * The frames are memory-mapped, not read, so a recording can be much larger than the heap, and the rows are
+ * sent straight from the mapping (see DummyCam.datagram), so the pages are only read (by the kernel) as they
+ * are sent. A recording is a file of frames, one after another, or a directory of such files (taken in name
+ * order). Each frame is 'rows' rows of 'rowSize' bytes, exactly as they are sent: the row index in the first
+ * two bytes of each row (as index / 100, index % 100), then the pixels.
+ * 
+ * Raw frames (just the pixels) are made into a recording with the main method, which puts the index in
+ * front of each row:
+ * 
+ * <pre>
+ * java -cp bin camera.FrameRecording raw.bin recording.bin rows width
+ * </pre>
+ * 
+ * The recording's rows are then width + 2 bytes.
+ */
+public final class FrameRecording {
+    
+    // the largest part of a file mapped at once (a mapping is at most 2GB).
+    private static final long REGION = 1L << 30;
+    
+    private final int rows;
+    private final int rowSize;
+    // the mapping each frame is in, and where in it.
+    private final ByteBuffer[] regions;
+    private final int[] offsets;
+    private final AtomicInteger next = new AtomicInteger();
+    private final String name;
+    
+    private FrameRecording(int rows, int rowSize, List<ByteBuffer> regions, List<Integer> offsets, String name) {
+        this.rows = rows;
+        this.rowSize = rowSize;
+        this.regions = regions.toArray(new ByteBuffer[0]);
+        this.offsets = new int[offsets.size()];
+        for (int i = 0; i < this.offsets.length; i++) {
+            this.offsets[i] = offsets.get(i);
+        }
+        this.name = name;
+    }
+    
+    /**
+     * Map a recording.
+     * @param path a file of frames, or a directory of them.
+     * @param rows the rows in each frame.
+     * @param rowSize the bytes in each row, including the row index.
+     */
+    static FrameRecording open(Path path, int rows, int rowSize) throws IOException {
+        if (rows < 1 || rows > DummyCam.MAXROWS || rowSize < 2 || rowSize > DummyCam.MAXROWSIZE) {
+            throw new IllegalArgumentException("Cannot record frames of " + rows + " rows of " + rowSize + " bytes");
+        }
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(path)) {
+                for (Path file : dir) {
+                    if (Files.isRegularFile(file)) {
+                        files.add(file);
+                    }
+                }
+            }
+            Collections.sort(files);
+        } else {
+            files.add(path);
+        }
+        final long frameSize = (long)rows * rowSize;
+        final long perRegion = Math.max(1, REGION / frameSize) * frameSize;
+        List<ByteBuffer> regions = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size % frameSize != 0) {
+                    throw new IOException(file + " is " + size + " bytes, not a whole number of " + frameSize + " byte frames");
+                }
+                // the mappings stay valid after the channel is closed.
+                for (long start = 0; start < size; start += perRegion) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(perRegion, size - start));
+                    for (int offset = 0; offset < region.capacity(); offset += frameSize) {
+                        regions.add(region);
+                        offsets.add(offset);
+                    }
+                }
+            }
+        }
+        if (offsets.isEmpty()) {
+            throw new IOException("No frames in " + path);
+        }
+        FrameRecording recording = new FrameRecording(rows, rowSize, regions, offsets, path.toString());
+        recording.check();
+        return recording;
+    }
+    
+    /**
+     * Make sure the first frame has its row indexes, so it is a recording (not raw frames, or the wrong size).
+     */
+    private void check() throws IOException {
+        ByteBuffer frame = getFrame(0);
+        for (int row = 0; row < rows; row++) {
+            if (frame.get(row * rowSize) != (byte)(row / 100) || frame.get(row * rowSize + 1) != (byte)(row % 100)) {
+                throw new IOException("Row " + row + " of the first frame of " + name + " does not start with its index,"
+                        + " it is not a recording of " + rows + " rows of " + rowSize + " bytes");
+            }
+        }
+    }
+    
+    /**
+     * @return the index of the next frame to send, from the first again after the last.
+     */
+    int next() {
+        return Math.floorMod(next.getAndIncrement(), offsets.length);
+    }
+    
+    /**
+     * @return a frame, as a buffer of its own (the mapped bytes are shared, the position and limit are not).
+     */
+    ByteBuffer getFrame(int index) {
+        ByteBuffer frame = regions[index].duplicate();
+        frame.position(offsets[index]).limit(offsets[index] + rows * rowSize);
+        return frame.slice();
+    }
+    
+    int getFrameCount() {
+        return offsets.length;
+    }
+    
+    int getRows() {
+        return rows;
+    }
+    
+    int getRowSize() {
+        return rowSize;
+    }
+    
+    @Override
+    public String toString() {
+        return name + " (" + offsets.length + " frames of " + rows + " rows of " + rowSize + " bytes)";
+    }
+    
+    /**
+     * Make a recording from raw frames, putting the row index in front of each row.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: FrameRecording raw recording rows width");
+            System.exit(1);
+        }
+        final int rows = Integer.parseInt(args[2]);
+        final int width = Integer.parseInt(args[3]);
+        if (rows < 1 || rows > DummyCam.MAXROWS || width < 0 || width > DummyCam.MAXROWSIZE - 2) {
+            throw new IllegalArgumentException("Cannot record frames of " + rows + " rows of " + width + " pixels");
+        }
+        long frames = 0;
+        try (FileChannel in = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(Paths.get(args[1]), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (in.size() % ((long)rows * width) != 0) {
+                throw new IOException(args[0] + " is not a whole number of " + rows + " x " + width + " frames");
+            }
+            ByteBuffer row = ByteBuffer.allocateDirect(width + 2);
+            for (long position = 0; position < in.size(); frames++) {
+                for (int r = 0; r < rows; r++) {
+                    row.clear();
+                    row.put((byte)(r / 100)).put((byte)(r % 100));
+                    while (row.hasRemaining()) {
+                        int read = in.read(row, position);
+                        if (read < 0) {
+                            throw new IOException(args[0] + " ended early");
+                        }
+                        position += read;
+                    }
+                    row.flip();
+                    while (row.hasRemaining()) {
+                        out.write(row);
+                    }
+                }
+            }
+        }
+        System.out.println(frames + " frames of " + rows + " rows of " + (width + 2) + " bytes in " + args[1]);
+    }
+    
+}
@@ -0,0 +1,714 @@
+package camera;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Damage done to the datagrams a DummyCam sends, to see how the camera control copes with a poor network.
+ * 
+ * An Impairment is a chain of stages, in the order they are added, that each datagram passes through on
+ * its way to the wire:
+ * <ul>
+ * <li>loss: each datagram is lost with a probability.</li>
+ * <li>burst: Gilbert-Elliott loss, a good and a bad state with their own loss probabilities, and the
+ * chances of moving from one to the other for each datagram, so losses come in bursts.</li>
+ * <li>reorder: a datagram is held back, with a probability, until 'depth' more have been sent.</li>
+ * <li>duplicate: a datagram is sent twice, with a probability.</li>
+ * <li>truncate: a datagram is cut short, to at most some bytes, with a probability.</li>
+ * <li>delay: each datagram is sent after a fixed delay, plus a random (uniform) jitter, which may reorder
+ * datagrams too.</li>
+ * <li>rate: the datagrams are sent no faster than some bytes per second, queueing behind each other.</li>
+ * <li>trace: the gaps and losses recorded from a real network (see NetworkTrace) are replayed, a datagram
+ * of the trace for each datagram sent, from the start of the trace again when it runs out.</li>
+ * </ul>
+ * Delayed datagrams are sent, when they are due, by one thread shared by every Impairment. A datagram the
+ * socket does not take (its send buffer is full) is counted as dropped.
+ * 
+ * The decisions come from one seeded Random, so the same seed, and the same sequence of datagrams, gives
+ * the same damage. That includes the DummyCam's decision to lose a whole response (see loseResponse). An
+ * Impairment must not be used by two threads at once.
+ * 
+ * An Impairment can also be made from a description, the stages in order, separated by commas, like
+ * "seed=42,burst=0.01:0.3,reorder=0.05:3,dup=0.01,truncate=0.001:100,delay=2:0.5,rate=50000000" (see parse).
+ */
+final class Impairment {
+    
+    /**
+     * The next stage, or the wire, that a datagram is passed to.
+     */
+    interface DatagramSink {
+        
+        /**
+         * @param channel the channel the datagram is sent on.
+         * @param datagram the datagram (from position to limit), only valid during the call.
+         * @param remote where it is sent.
+         * @param due when (System.nanoTime) it should be sent, or 0 for now.
+         */
+        void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException;
+        
+        /**
+         * Send anything held back, at the end of a response.
+         */
+        void flush(DatagramChannel channel) throws IOException;
+    }
+    
+    /**
+     * A step in the chain, which passes datagrams (or not) to the next.
+     */
+    private abstract static class Stage implements DatagramSink {
+        
+        DatagramSink next;
+        
+        @Override
+        public void flush(DatagramChannel channel) throws IOException {
+            next.flush(channel);
+        }
+    }
+    
+    private final class Loss extends Stage {
+        
+        private final double probability;
+        
+        Loss(double probability) {
+            this.probability = check("loss", probability);
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            if (random.nextDouble() < probability) {
+                dropped++;
+                return;
+            }
+            next.send(channel, datagram, remote, due);
+        }
+        
+        @Override
+        public String toString() {
+            return "loss=" + probability;
+        }
+    }
+    
+    private final class Burst extends Stage {
+        
+        private final double toBad;
+        private final double toGood;
+        private final double lossGood;
+        private final double lossBad;
+        private boolean bad = false;
+        
+        Burst(double toBad, double toGood, double lossGood, double lossBad) {
+            this.toBad = check("burst p", toBad);
+            this.toGood = check("burst r", toGood);
+            this.lossGood = check("burst good loss", lossGood);
+            this.lossBad = check("burst bad loss", lossBad);
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            bad = bad ? random.nextDouble() >= toGood : random.nextDouble() < toBad;
+            if (random.nextDouble() < (bad ? lossBad : lossGood)) {
+                dropped++;
+                return;
+            }
+            next.send(channel, datagram, remote, due);
+        }
+        
+        @Override
+        public String toString() {
+            return "burst=" + toBad + ":" + toGood + ":" + lossGood + ":" + lossBad;
+        }
+    }
+    
+    private final class Reorder extends Stage {
+        
+        private final double probability;
+        private final int depth;
+        // the datagram held back to be sent late, and how many datagrams to send before it.
+        private final ByteBuffer held = ByteBuffer.allocateDirect(DummyCam.MAXDATAGRAM);
+        private SocketAddress heldFor = null;
+        private long heldDue;
+        private int heldAfter = 0;
+        
+        Reorder(double probability, int depth) {
+            if (depth < 1) {
+                throw new IllegalArgumentException("Reorder depth must be at least 1, not " + depth);
+            }
+            this.probability = check("reorder", probability);
+            this.depth = depth;
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            if (heldFor == null && random.nextDouble() < probability) {
+                held.clear();
+                held.put(datagram).flip();
+                heldFor = remote;
+                heldDue = due;
+                heldAfter = depth;
+                reordered++;
+                return;
+            }
+            next.send(channel, datagram, remote, due);
+            if (heldFor != null && --heldAfter == 0) {
+                release(channel);
+            }
+        }
+        
+        @Override
+        public void flush(DatagramChannel channel) throws IOException {
+            release(channel);
+            next.flush(channel);
+        }
+        
+        private void release(DatagramChannel channel) throws IOException {
+            if (heldFor != null) {
+                SocketAddress remote = heldFor;
+                heldFor = null;
+                next.send(channel, held, remote, heldDue);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "reorder=" + probability + ":" + depth;
+        }
+    }
+    
+    private final class Duplicate extends Stage {
+        
+        private final double probability;
+        
+        Duplicate(double probability) {
+            this.probability = check("duplicate", probability);
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            if (random.nextDouble() < probability) {
+                duplicated++;
+                int position = datagram.position();
+                next.send(channel, datagram, remote, due);
+                datagram.position(position);
+            }
+            next.send(channel, datagram, remote, due);
+        }
+        
+        @Override
+        public String toString() {
+            return "dup=" + probability;
+        }
+    }
+    
+    private final class Truncate extends Stage {
+        
+        private final double probability;
+        private final int length;
+        
+        Truncate(double probability, int length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Truncated length cannot be negative, not " + length);
+            }
+            this.probability = check("truncate", probability);
+            this.length = length;
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            if (random.nextDouble() < probability && datagram.remaining() > length) {
+                truncated++;
+                datagram.limit(datagram.position() + length);
+            }
+            next.send(channel, datagram, remote, due);
+        }
+        
+        @Override
+        public String toString() {
+            return "truncate=" + probability + ":" + length;
+        }
+    }
+    
+    private final class Delay extends Stage {
+        
+        private final long fixed;
+        private final long jitter;
+        
+        Delay(long fixedNanos, long jitterNanos) {
+            if (fixedNanos < 0 || jitterNanos < 0) {
+                throw new IllegalArgumentException("Delay and jitter cannot be negative, not " + fixedNanos + ", " + jitterNanos);
+            }
+            this.fixed = fixedNanos;
+            this.jitter = jitterNanos;
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            long from = due == 0 ? System.nanoTime() : due;
+            long extra = jitter == 0 ? 0 : (long)(random.nextDouble() * jitter);
+            next.send(channel, datagram, remote, from + fixed + extra);
+        }
+        
+        @Override
+        public String toString() {
+            return "delay=" + fixed / 1e6 + ":" + jitter / 1e6;
+        }
+    }
+    
+    private final class Rate extends Stage {
+        
+        private final double nanosPerByte;
+        // when the (emulated) link has finished sending what it has been given.
+        private long free = 0;
+        
+        Rate(long bytesPerSecond) {
+            if (bytesPerSecond <= 0) {
+                throw new IllegalArgumentException("The rate must be positive, not " + bytesPerSecond);
+            }
+            this.nanosPerByte = 1e9 / bytesPerSecond;
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            long now = System.nanoTime();
+            long start = Math.max(due == 0 ? now : due, free - now > 0 ? free : now);
+            free = start + (long)(datagram.remaining() * nanosPerByte);
+            next.send(channel, datagram, remote, start - now > 0 ? start : 0);
+        }
+        
+        @Override
+        public String toString() {
+            return "rate=" + Math.round(1e9 / nanosPerByte);
+        }
+    }
+    
+    private final class Replay extends Stage {
+        
+        private final NetworkTrace trace;
+        private int index = 0;
+        // when the last datagram was sent (or lost), to put the next one's gap after.
+        private long last;
+        private boolean started = false;
+        
+        Replay(NetworkTrace trace) {
+            this.trace = trace;
+        }
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            final int i = index;
+            index = i + 1 == trace.size() ? 0 : i + 1;
+            long now = System.nanoTime();
+            long from = due == 0 ? now : due;
+            long at = last + trace.getGapNanos(i);
+            if (!started || at - from < 0) {
+                // the first datagram, or after a pause (between responses), when the gap has passed already.
+                at = from;
+                started = true;
+            }
+            last = at;
+            if (trace.isLost(i)) {
+                dropped++;
+                return;
+            }
+            next.send(channel, datagram, remote, at - now > 0 ? at : 0);
+        }
+        
+        @Override
+        public String toString() {
+            return "trace=" + trace.getName();
+        }
+    }
+    
+    /**
+     * A datagram waiting for its time to be sent.
+     */
+    private static final class Late implements Delayed {
+        
+        private final Wire wire;
+        private final DatagramChannel channel;
+        private final ByteBuffer datagram;
+        private final SocketAddress remote;
+        private final long due;
+        // keeps datagrams due at the same time in order.
+        private final long sequence;
+        
+        Late(Wire wire, DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due, long sequence) {
+            this.wire = wire;
+            this.channel = channel;
+            this.datagram = datagram;
+            this.remote = remote;
+            this.due = due;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed other) {
+            Late o = (Late)other;
+            int c = Long.compare(due - o.due, 0L);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+    
+    /**
+     * The delayed datagrams of every Impairment, sent when they are due by one thread (started when the first
+     * datagram is delayed), so a fleet of cameras that delay does not need a thread for each.
+     */
+    private static final class DelayLine implements Runnable {
+        
+        private static final DelayLine SHARED = new DelayLine();
+        
+        private final DelayQueue<Late> line = new DelayQueue<>();
+        private final AtomicLong sequence = new AtomicLong();
+        private Thread thread = null;
+        
+        void add(Wire wire, DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) {
+            synchronized (this) {
+                if (thread == null) {
+                    thread = new Thread(this, "DummyCam Delay Line");
+                    // We are a daemon thread, so if the JVM dies, we do too.
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            line.add(new Late(wire, channel, datagram, remote, due, sequence.getAndIncrement()));
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                Late late;
+                try {
+                    late = line.take();
+                } catch (InterruptedException e) {
+                    // keep going, we are a daemon.
+                    continue;
+                }
+                try {
+                    if (late.channel.send(late.datagram, late.remote) == 0) {
+                        late.wire.lost();
+                    }
+                } catch (IOException e) {
+                    // the client (or the camera) has gone away.
+                    late.wire.lost();
+                    AsyncLog.warn("Unable to send a late datagram to {}: {}").arg(late.remote).arg(e).publish();
+                }
+                late.wire.waiting.decrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * The end of the chain, sends each datagram now, or when it is due (on the shared DelayLine).
+     */
+    private final class Wire implements DatagramSink {
+        
+        // the datagrams on the delay line, which a datagram due now must not overtake.
+        private final AtomicInteger waiting = new AtomicInteger();
+        
+        @Override
+        public void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote, long due) throws IOException {
+            if ((due == 0 || due - System.nanoTime() <= 0) && waiting.get() == 0) {
+                int sent = channel.send(datagram, remote);
+                if (sent == 0) {
+                    dropped++;
+                    return;
+                }
+                handed += sent;
+                handedDatagrams++;
+                return;
+            }
+            handed += datagram.remaining();
+            handedDatagrams++;
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+            copy.put(datagram).flip();
+            waiting.incrementAndGet();
+            DelayLine.SHARED.add(this, channel, copy, remote, due);
+        }
+        
+        @Override
+        public void flush(DatagramChannel channel) {
+            // the delayed datagrams go when they are due.
+        }
+        
+        /**
+         * A delayed datagram was not sent (called on the delay line's thread).
+         */
+        void lost() {
+            lateDropped++;
+        }
+    }
+    
+    private final Random random;
+    private final long seed;
+    private final List<Stage> stages = new ArrayList<>();
+    private final Wire wire = new Wire();
+    // the bytes, and datagrams, handed to the wire during one send.
+    private int handed = 0;
+    private int handedDatagrams = 0;
+    // read by other threads, for reports (the delayed datagrams that were not sent are counted by the delay
+    // line's thread, apart from the rest).
+    private volatile long dropped = 0;
+    private volatile long lateDropped = 0;
+    private volatile long reordered = 0;
+    private volatile long duplicated = 0;
+    private volatile long truncated = 0;
+    
+    /**
+     * Create an Impairment with no stages (it sends everything as it is), add the stages to it.
+     * @param seed the seed for the random decisions.
+     */
+    Impairment(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+    
+    /**
+     * Add a stage that loses each datagram with a probability.
+     */
+    Impairment loss(double probability) {
+        return add(new Loss(probability));
+    }
+    
+    /**
+     * Add a stage that loses datagrams in bursts (a Gilbert-Elliott model).
+     * @param toBad the chance, for each datagram, of the good state turning bad.
+     * @param toGood the chance, for each datagram, of the bad state turning good.
+     * @param lossGood the chance of losing a datagram in the good state.
+     * @param lossBad the chance of losing a datagram in the bad state.
+     */
+    Impairment burst(double toBad, double toGood, double lossGood, double lossBad) {
+        return add(new Burst(toBad, toGood, lossGood, lossBad));
+    }
+    
+    /**
+     * Add a stage that holds a datagram back, with a probability, until depth more have been sent.
+     */
+    Impairment reorder(double probability, int depth) {
+        return add(new Reorder(probability, depth));
+    }
+    
+    /**
+     * Add a stage that sends a datagram twice, with a probability.
+     */
+    Impairment duplicate(double probability) {
+        return add(new Duplicate(probability));
+    }
+    
+    /**
+     * Add a stage that cuts a datagram short, to at most length bytes, with a probability.
+     */
+    Impairment truncate(double probability, int length) {
+        return add(new Truncate(probability, length));
+    }
+    
+    /**
+     * Add a stage that delays each datagram, by a fixed time plus a random time up to the jitter.
+     */
+    Impairment delay(long fixedNanos, long jitterNanos) {
+        return add(new Delay(fixedNanos, jitterNanos));
+    }
+    
+    /**
+     * Add a stage that sends no faster than a number of bytes per second.
+     */
+    Impairment rate(long bytesPerSecond) {
+        return add(new Rate(bytesPerSecond));
+    }
+    
+    /**
+     * Add a stage that replays the gaps and losses of a recorded trace.
+     */
+    Impairment replay(NetworkTrace trace) {
+        return add(new Replay(trace));
+    }
+    
+    private Impairment add(Stage stage) {
+        stages.add(stage);
+        stage.next = wire;
+        if (stages.size() > 1) {
+            stages.get(stages.size() - 2).next = stage;
+        }
+        return this;
+    }
+    
+    /**
+     * Make an Impairment from a description: its stages, in order, separated by commas. The stages are
+     * loss=p, burst=p:r[:lossGood[:lossBad]] (lossGood 0 and lossBad 1 by default), reorder=p:depth, dup=p,
+     * truncate=p:bytes, delay=ms[:jitterMs], rate=bytesPerSecond, and trace=file (see NetworkTrace). A seed=n (1 by default) is not a stage,
+     * it can go anywhere.
+     * @param description the description, like "seed=42,loss=0.01,delay=2:0.5".
+     * @return the Impairment.
+     */
+    static Impairment parse(String description) {
+        long seed = 1;
+        for (String part : description.split(",")) {
+            String[] kv = part.trim().split("=", 2);
+            if (kv[0].equals("seed") && kv.length > 1) {
+                seed = Long.parseLong(kv[1].trim());
+            }
+        }
+        Impairment impairment = new Impairment(seed);
+        for (String part : description.split(",")) {
+            if (part.trim().isEmpty()) {
+                continue;
+            }
+            String[] kv = part.trim().split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected name=value, not " + part);
+            }
+            String[] v = kv[1].trim().split(":");
+            switch (kv[0].trim()) {
+                case "seed":
+                    break;
+                case "loss":
+                    impairment.loss(Double.parseDouble(v[0]));
+                    break;
+                case "burst":
+                    impairment.burst(Double.parseDouble(v[0]), Double.parseDouble(v[1]),
+                            v.length > 2 ? Double.parseDouble(v[2]) : 0.0, v.length > 3 ? Double.parseDouble(v[3]) : 1.0);
+                    break;
+                case "reorder":
+                    impairment.reorder(Double.parseDouble(v[0]), v.length > 1 ? Integer.parseInt(v[1]) : 1);
+                    break;
+                case "dup":
+                    impairment.duplicate(Double.parseDouble(v[0]));
+                    break;
+                case "truncate":
+                    impairment.truncate(Double.parseDouble(v[0]), Integer.parseInt(v[1]));
+                    break;
+                case "delay":
+                    impairment.delay((long)(Double.parseDouble(v[0]) * 1e6), v.length > 1 ? (long)(Double.parseDouble(v[1]) * 1e6) : 0L);
+                    break;
+                case "rate":
+                    impairment.rate(Long.parseLong(v[0]));
+                    break;
+                case "trace":
+                    try {
+                        impairment.replay(NetworkTrace.read(Paths.get(kv[1].trim())));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Cannot read the trace " + kv[1], e);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown impairment " + kv[0] + " in " + description);
+            }
+        }
+        return impairment;
+    }
+    
+    private static double check(String what, double probability) {
+        if (probability < 0.0 || probability > 1.0) {
+            throw new IllegalArgumentException("The " + what + " probability must be from 0.0 to 1.0, not " + probability);
+        }
+        return probability;
+    }
+    
+    /**
+     * Send (or not) one datagram, through the stages.
+     * @param channel the channel to send on.
+     * @param datagram the datagram (from position to limit).
+     * @param remote where to send it.
+     * @return the number of bytes sent, or queued to send later (which may include datagrams held back
+     * before, or duplicates, and is 0 if this one was lost, or held back).
+     */
+    int send(DatagramChannel channel, ByteBuffer datagram, SocketAddress remote) throws IOException {
+        handed = 0;
+        handedDatagrams = 0;
+        if (stages.isEmpty()) {
+            wire.send(channel, datagram, remote, 0L);
+        } else {
+            stages.get(0).send(channel, datagram, remote, 0L);
+        }
+        return handed;
+    }
+    
+    /**
+     * Send the datagrams held back (if any), at the end of a response.
+     * @param channel the channel to send on.
+     * @return the number of bytes sent, or queued to send later.
+     */
+    int flush(DatagramChannel channel) throws IOException {
+        handed = 0;
+        handedDatagrams = 0;
+        if (!stages.isEmpty()) {
+            stages.get(0).flush(channel);
+        }
+        return handed;
+    }
+    
+    /**
+     * @return the number of datagrams handed to the wire by the last send or flush (held back datagrams, and
+     * duplicates, make it more than one).
+     */
+    int getHanded() {
+        return handedDatagrams;
+    }
+    
+    /**
+     * Decide whether to lose a whole response, from the same seeded Random as the rest of the damage.
+     * @param probability the chance (0.0 to 1.0) of losing it (the DummyCam's error rate).
+     */
+    boolean loseResponse(double probability) {
+        return probability > 0 && random.nextDouble() < check("error", probability);
+    }
+    
+    /**
+     * @return the seed of the random decisions.
+     */
+    long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * @return the number of datagrams lost so far.
+     */
+    long getDropped() {
+        return dropped + lateDropped;
+    }
+    
+    /**
+     * @return the number of datagrams sent late so far.
+     */
+    long getReordered() {
+        return reordered;
+    }
+    
+    /**
+     * @return the number of datagrams sent twice so far.
+     */
+    long getDuplicated() {
+        return duplicated;
+    }
+    
+    /**
+     * @return the number of datagrams cut short so far.
+     */
+    long getTruncated() {
+        return truncated;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("seed=").append(seed);
+        for (Stage stage : stages) {
+            sb.append(',').append(stage);
+        }
+        return sb.toString();
+    }
+    
+}
@@ -0,0 +1,162 @@
+package camera;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies (in nanoseconds), in the style of HdrHistogram: fixed memory, lock-free, and
+ * recording a value does not allocate, so it can be left on permanently.
+ * 
+ * The buckets are log-linear: values below 64ns each have their own bucket, and above that each power of 2
+ * is split in to 32 linear buckets, so a value is known to within about 3% (up to about 68 seconds, larger
+ * values are counted in the last bucket, though the maximum is exact).
+ * 
+ * A snapshot is a copy of the counts. It never blocks the threads that record, and values recorded while the
+ * snapshot is taken end up in this snapshot or the next one.
+ */
+public final class LatencyHistogram {
+    
+    // 2^SUBBITS linear buckets for each power of 2.
+    private static final int SUBBITS = 5;
+    private static final int SUBCOUNT = 1 << SUBBITS;
+    // values from 2^MAXBITS up are counted in the last bucket.
+    private static final int MAXBITS = 36;
+    private static final long MAXVALUE = (1L << MAXBITS) - 1;
+    private static final int BUCKETS = (MAXBITS - SUBBITS + 1) * SUBCOUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Record a latency.
+     * @param nanos the latency in nanoseconds (negative values count as 0).
+     */
+    void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        counts.incrementAndGet(index(Math.min(value, MAXVALUE)));
+        total.addAndGet(value);
+        long m;
+        while ((m = max.get()) < value && !max.compareAndSet(m, value)) {
+            // someone else recorded a new maximum, check against that.
+        }
+    }
+    
+    /**
+     * @return a copy of the latencies recorded so far.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, total.get(), max.get());
+    }
+    
+    /**
+     * @return a copy of the latencies recorded since the last reset, and start again from nothing.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.getAndSet(i, 0L);
+        }
+        return new Snapshot(copy, total.getAndSet(0L), max.getAndSet(0L));
+    }
+    
+    static int index(long value) {
+        if (value < 2 * SUBCOUNT) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUBBITS;
+        return (shift << SUBBITS) + (int)(value >>> shift);
+    }
+    
+    /**
+     * @return the largest value that is counted in the given bucket.
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUBCOUNT) {
+            return index;
+        }
+        int shift = (index >> SUBBITS) - 1;
+        long sub = (index & (SUBCOUNT - 1)) + SUBCOUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+    
+    /**
+     * The latencies recorded in a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+        
+        private Snapshot(long[] counts, long total, long max) {
+            this.counts = counts;
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            this.count = sum;
+            this.total = total;
+            this.max = max;
+        }
+        
+        /**
+         * @return the number of latencies recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+        
+        /**
+         * @return the mean latency in nanoseconds (0 if nothing was recorded).
+         */
+        public double getMean() {
+            return count == 0 ? 0.0 : total / (double)count;
+        }
+        
+        /**
+         * @return the largest latency in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+        
+        /**
+         * @param percentile the percentile, from 0.0 to 100.0.
+         * @return the latency (in nanoseconds) that the given percentage of the recorded latencies are at or below.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0L;
+            }
+            long target = Math.max(1L, (long)Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+            long sofar = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sofar += counts[i];
+                if (sofar >= target) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "count %d mean %.1fus p50 %.1fus p99 %.1fus p99.9 %.1fus max %.1fus", count,
+                    getMean() / 1000.0, micros(getValueAtPercentile(50.0)), micros(getValueAtPercentile(99.0)),
+                    micros(getValueAtPercentile(99.9)), micros(max));
+        }
+        
+        private static double micros(long nanos) {
+            return nanos / (double)TimeUnit.MICROSECONDS.toNanos(1);
+        }
+    }
+    
+}
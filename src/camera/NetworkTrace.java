@@ -0,0 +1,166 @@
+package camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A recorded sequence of datagrams, as they arrived from a camera in the field: the gap before each one, and
+ * whether it was lost. An Impairment can replay it (see Impairment.replay), so a DummyCam sends with the same
+ * gaps, and loses the same datagrams, in the same bursts.
+ * 
+ * A trace is read from a CSV file (its name ending in .csv) with a line for each datagram: the gap since the
+ * previous datagram in microseconds, and optionally 1 if it was lost (0 or nothing if not), like "12.5,0".
+ * Lines that do not start with a number (a header, or # comments) are skipped. From a capture, tshark can
+ * write the gaps with -T fields -e frame.time_delta_displayed (in seconds, so scaled by 1e6), and the lost
+ * datagrams can be found from the gaps in the rows' sequence numbers.
+ * 
+ * Any other file is binary: a 4-byte big-endian int for each datagram, the gap in microseconds in the low 31
+ * bits, and the top bit set if it was lost. That is a quarter of the size, and quicker to read.
+ */
+public final class NetworkTrace {
+    
+    private static final int LOST = 0x80000000;
+    private static final int GAP = 0x7fffffff;
+    
+    // the gap in microseconds of each datagram, and the LOST bit.
+    private final int[] records;
+    private final String name;
+    
+    private NetworkTrace(int[] records, String name) {
+        if (records.length == 0) {
+            throw new IllegalArgumentException("No datagrams in the trace " + name);
+        }
+        this.records = records;
+        this.name = name;
+    }
+    
+    /**
+     * Read a trace, as CSV if the file name ends in .csv, and as binary if not.
+     */
+    static NetworkTrace read(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        return name.toLowerCase(Locale.ROOT).endsWith(".csv") ? readCsv(file) : readBinary(file);
+    }
+    
+    private static NetworkTrace readCsv(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        int[] records = new int[lines.size()];
+        int count = 0;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || !(Character.isDigit(trimmed.charAt(0)) || trimmed.charAt(0) == '.')) {
+                continue;
+            }
+            String[] fields = trimmed.split("[,;\\s]+");
+            double gap = Double.parseDouble(fields[0]);
+            boolean lost = fields.length > 1 && !fields[1].equals("0") && !fields[1].equalsIgnoreCase("false");
+            records[count++] = record(gap, lost);
+        }
+        return new NetworkTrace(Arrays.copyOf(records, count), file.toString());
+    }
+    
+    private static NetworkTrace readBinary(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length % Integer.BYTES != 0) {
+            throw new IOException("A binary trace is 4 bytes for each datagram, but " + file + " has " + bytes.length);
+        }
+        IntBuffer ints = ByteBuffer.wrap(bytes).asIntBuffer();
+        int[] records = new int[ints.remaining()];
+        ints.get(records);
+        return new NetworkTrace(records, file.toString());
+    }
+    
+    private static int record(double gapMicros, boolean lost) {
+        if (gapMicros < 0 || gapMicros > GAP) {
+            throw new IllegalArgumentException("A gap must be from 0 to " + GAP + " microseconds, not " + gapMicros);
+        }
+        return (int)Math.round(gapMicros) | (lost ? LOST : 0);
+    }
+    
+    /**
+     * Write the trace in the binary format.
+     */
+    void write(Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(records.length * Integer.BYTES);
+        bytes.asIntBuffer().put(records);
+        Files.write(file, bytes.array());
+    }
+    
+    /**
+     * @return the number of datagrams in the trace.
+     */
+    int size() {
+        return records.length;
+    }
+    
+    /**
+     * @return the gap, in nanoseconds, before the datagram at the index.
+     */
+    long getGapNanos(int index) {
+        return TimeUnit.MICROSECONDS.toNanos(records[index] & GAP);
+    }
+    
+    /**
+     * @return true if the datagram at the index was lost.
+     */
+    boolean isLost(int index) {
+        return (records[index] & LOST) != 0;
+    }
+    
+    /**
+     * @return the file the trace was read from.
+     */
+    String getName() {
+        return name;
+    }
+    
+    /**
+     * @return a summary: the datagrams, the loss, the longest burst of losses, and the mean gap.
+     */
+    @Override
+    public String toString() {
+        int lost = 0;
+        int burst = 0;
+        int longest = 0;
+        long gaps = 0;
+        for (int record : records) {
+            if ((record & LOST) != 0) {
+                lost++;
+                longest = Math.max(longest, ++burst);
+            } else {
+                burst = 0;
+            }
+            gaps += record & GAP;
+        }
+        return String.format(Locale.ROOT, "%s: %d datagrams, %.2f%% lost, longest burst %d, mean gap %.1fus",
+                name, records.length, 100.0 * lost / records.length, longest, (double)gaps / records.length);
+    }
+    
+    /**
+     * Convert a CSV trace to the binary format, and show what is in it.
+     * <pre>
+     * java -cp bin camera.NetworkTrace trace.csv trace.bin
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: NetworkTrace trace [binary]");
+            System.exit(1);
+        }
+        NetworkTrace trace = read(Paths.get(args[0]));
+        System.out.println(trace);
+        if (args.length > 1) {
+            trace.write(Paths.get(args[1]));
+        }
+    }
+    
+}
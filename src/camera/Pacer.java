@@ -0,0 +1,120 @@
+package camera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the datagrams a DummyCam sends, so they go out at a steady rate (like a sensor reading out a line
+ * at a time), not as fast as the socket takes them.
+ * 
+ * There are two token buckets, one of bytes and one of datagrams, either of which may be unlimited. A
+ * datagram is sent when both buckets hold enough tokens for it. The buckets hold 'burst' nanoseconds' worth
+ * of tokens, so after a pause, that much can be sent at once (with no burst, every datagram waits for its
+ * turn). Each bucket is kept as the time it will next be full (the 'theoretical arrival time' of GCRA), so
+ * taking tokens is a little arithmetic, and never needs a timer.
+ * 
+ * A wait longer than -Dcamera.pace.spin microseconds (100 by default) parks for all but that much, and then
+ * spins for the rest, as parkNanos alone can overshoot by tens of microseconds.
+ * 
+ * A Pacer must not be used by two threads at once.
+ */
+final class Pacer {
+    
+    private static final long SPIN = TimeUnit.MICROSECONDS.toNanos(Long.getLong("camera.pace.spin", 100L));
+    
+    private final long bytesPerSecond;
+    private final long datagramsPerSecond;
+    private final double nanosPerByte;
+    private final long nanosPerDatagram;
+    private final long burst;
+    // when each bucket will be full again.
+    private long bytesFull;
+    private long datagramsFull;
+    
+    /**
+     * @param bytesPerSecond the sustained byte rate, or 0 for no limit.
+     * @param datagramsPerSecond the sustained datagram rate, or 0 for no limit.
+     * @param burstNanos how far ahead of the steady rate sending may get, after a pause.
+     */
+    Pacer(long bytesPerSecond, long datagramsPerSecond, long burstNanos) {
+        if (bytesPerSecond < 0 || datagramsPerSecond < 0 || burstNanos < 0) {
+            throw new IllegalArgumentException("Rates and burst cannot be negative, not " + bytesPerSecond + ", "
+                    + datagramsPerSecond + ", " + burstNanos);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.datagramsPerSecond = datagramsPerSecond;
+        this.nanosPerByte = bytesPerSecond == 0 ? 0.0 : 1e9 / bytesPerSecond;
+        this.nanosPerDatagram = datagramsPerSecond == 0 ? 0L : TimeUnit.SECONDS.toNanos(1) / datagramsPerSecond;
+        this.burst = burstNanos;
+        long now = System.nanoTime();
+        this.bytesFull = now;
+        this.datagramsFull = now;
+    }
+    
+    /**
+     * Make a Pacer from a description, bytesPerSecond[:datagramsPerSecond[:burstMicros]], like "50000000:20000".
+     */
+    static Pacer parse(String description) {
+        String[] v = description.trim().split(":");
+        return new Pacer(Long.parseLong(v[0]), v.length > 1 ? Long.parseLong(v[1]) : 0L,
+                v.length > 2 ? TimeUnit.MICROSECONDS.toNanos(Long.parseLong(v[2])) : 0L);
+    }
+    
+    /**
+     * Take the tokens for a datagram, without waiting.
+     * @param bytes the size of the datagram.
+     * @return when (System.nanoTime) it may be sent, which may have passed already.
+     */
+    long reserve(int bytes) {
+        long now = System.nanoTime();
+        long at = now;
+        if (bytesPerSecond > 0 && bytesFull - burst - at > 0) {
+            at = bytesFull - burst;
+        }
+        if (datagramsPerSecond > 0 && datagramsFull - burst - at > 0) {
+            at = datagramsFull - burst;
+        }
+        // a bucket cannot be fuller than full, so never count from before the datagram goes.
+        bytesFull = (bytesFull - at > 0 ? bytesFull : at) + (long)(bytes * nanosPerByte);
+        datagramsFull = (datagramsFull - at > 0 ? datagramsFull : at) + nanosPerDatagram;
+        return at;
+    }
+    
+    /**
+     * Wait until the buckets hold the tokens for a datagram, and take them.
+     * @param bytes the size of the datagram.
+     */
+    void acquire(int bytes) {
+        awaitUntil(reserve(bytes));
+    }
+    
+    /**
+     * Wait until a time, parking for the most of it, and spinning for the end.
+     * @param deadline the System.nanoTime to wait until.
+     */
+    static void awaitUntil(long deadline) {
+        while (deadline - System.nanoTime() > 0) {
+            pause(deadline);
+        }
+    }
+    
+    /**
+     * Wait some of the way to a time: park until just before it, or spin once when it is close. Returns early
+     * if the thread is unparked, so the caller can look for other work before waiting again.
+     * @param deadline the System.nanoTime to wait for.
+     */
+    static void pause(long deadline) {
+        long wait = deadline - System.nanoTime();
+        if (wait > SPIN) {
+            LockSupport.parkNanos(wait - SPIN);
+        } else {
+            Thread.onSpinWait();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return bytesPerSecond + ":" + datagramsPerSecond + ":" + TimeUnit.NANOSECONDS.toMicros(burst);
+    }
+    
+}
@@ -1,42 +1,138 @@
 package camera;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * This is a mock up of what a camera result will be. you will need to change this to match your system.
+ * 
+ * The data may be held in a (direct) buffer, as it was received from the camera. Use getBuffer()
+ * to read it without copying.
+ * 
+ * Results from the camera hold a pooled frame buffer. Release the result (or use it in a
+ * try-with-resources block) when done with the data, so the buffer can be reused. Use retain()
+ * if the data is handed to something else that will release it too.
  */
-public class Result {
+public class Result implements AutoCloseable {
     
-    private final byte[] data;
+    private final ByteBuffer buffer;
     private final boolean success;
     private final Exception exception;
-
-
+    // the claim on the pooled buffer, if it is pooled.
+    private final FramePool.Lease lease;
+    // the byte[] view of the data, created when first needed.
+    private byte[] data;
+    
+    
     public Result(byte[] data, Exception e) {
-        super();
+        this(ByteBuffer.wrap(data), e);
         this.data = data;
+    }
+    
+    public Result(ByteBuffer buffer, Exception e) {
+        super();
+        this.buffer = buffer;
         this.success = e == null; // no exception
         this.exception = e;
+        this.lease = null;
     }
-
-    public byte[] getData() {
+    
+    /**
+     * A successful result, in a buffer that goes back to the pool when released.
+     */
+    Result(ByteBuffer buffer, FramePool pool) {
+        super();
+        this.buffer = buffer;
+        this.success = true;
+        this.exception = null;
+        this.lease = pool.lease(buffer, this);
+    }
+    
+    /**
+     * @return the data as an array. If the data was received in to a direct buffer, this copies it (once).
+     */
+    public synchronized byte[] getData() {
+        if (data == null) {
+            checkLive();
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+        }
         return data;
     }
     
+    /**
+     * @return a read-only view of the data, without copying it. It is only valid until the result is released.
+     */
+    public ByteBuffer getBuffer() {
+        checkLive();
+        return buffer.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Add a reference to the data, which will need one more release().
+     * @return this result.
+     */
+    public Result retain() {
+        if (lease != null) {
+            lease.retain();
+        }
+        return this;
+    }
+    
+    /**
+     * Drop a reference to the data. When the last reference is gone, the buffer goes back to the pool,
+     * and the data can no longer be read (unless getData() was called before).
+     */
+    public void release() {
+        if (lease != null) {
+            lease.release();
+        }
+    }
+    
+    /**
+     * Same as release().
+     */
+    @Override
+    public void close() {
+        release();
+    }
+    
+    private void checkLive() {
+        if (lease != null && lease.isReleased()) {
+            throw new IllegalStateException("Result has been released");
+        }
+    }
+    
+    /**
+     * @return the number of bytes of data.
+     */
+    public int getLength() {
+        return buffer.remaining();
+    }
+    
     public Exception getException() {
         return exception;
     }
-
+    
     public boolean isSuccess() {
         return success;
     }
     
+    private String head() {
+        if (lease != null && lease.isReleased()) {
+            return "(released)";
+        }
+        byte[] head = new byte[Math.min(8, buffer.remaining())];
+        buffer.duplicate().get(head);
+        return Arrays.toString(head);
+    }
+    
     @Override
     public String toString() {
         if (!success) {
-            return String.format("Result FAIL: %d bytes: %s -> %s", data.length, Arrays.toString(Arrays.copyOf(data, Math.min(8, data.length))), exception.toString());
+            return String.format("Result FAIL: %d bytes: %s -> %s", getLength(), head(), exception.toString());
         }
-        return String.format("Result SUCCESS: %d bytes: %s", data.length, Arrays.toString(Arrays.copyOf(data, Math.min(8, data.length))));
+        return String.format("Result SUCCESS: %d bytes: %s", getLength(), head());
     }
-
+    
 }
@@ -0,0 +1,40 @@
+package camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One row (datagram) of a response, as delivered by CameraControl.stream().
+ * 
+ * The data is a read-only view of the frame the response is being received in to. It is valid
+ * until the subscriber's onComplete (or onError) returns, copy it if it is needed after that.
+ */
+public final class Row {
+    
+    private final int index;
+    private final ByteBuffer data;
+    
+    Row(int index, ByteBuffer data) {
+        this.index = index;
+        this.data = data;
+    }
+    
+    /**
+     * @return the position of this row in the response (its sequence number).
+     */
+    public int getIndex() {
+        return index;
+    }
+    
+    /**
+     * @return the row data (read-only).
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Row %d: %d bytes", index, data.remaining());
+    }
+    
+}
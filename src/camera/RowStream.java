@@ -0,0 +1,203 @@
+package camera;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the rows of one response to a single subscriber, in the order they arrive, as
+ * they arrive, while the rest of the response is still being received.
+ * 
+ * The command is only queued when the subscriber subscribes. Rows that arrive before they are
+ * requested wait in the frame (which holds all of them anyway), so backpressure never slows
+ * the camera down, or loses data. The manager thread records each row as it lands, and
+ * whichever thread next has both demand and rows (the manager, or one calling request())
+ * delivers them. The frame goes back to the pool once the subscriber has been told the
+ * stream is over, or has cancelled and the transfer is done.
+ * 
+ * If the command fails, rows that have not been delivered yet are dropped, and onError gets
+ * the failure.
+ */
+final class RowStream implements Flow.Publisher<Row>, Flow.Subscription {
+    
+    private final Consumer<RowStream> starter;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private volatile Flow.Subscriber<? super Row> subscriber;
+    
+    // set by the managing thread when the transfer starts.
+    private ByteBuffer frame = null;
+    private int size;
+    private int[] landed;
+    private volatile int landedCount = 0;
+    
+    // set by the managing thread when the transfer is over (it no longer touches the frame).
+    private volatile boolean finished = false;
+    private volatile Throwable error = null;
+    
+    private volatile boolean cancelled = false;
+    private volatile Throwable badRequest = null;
+    
+    // only used while draining.
+    private int emitted = 0;
+    private boolean terminated = false;
+    private boolean released = false;
+    private ByteBuffer view = null;
+    
+    /**
+     * @param starter queues the command, once there is a subscriber.
+     */
+    RowStream(Consumer<RowStream> starter) {
+        this.starter = starter;
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super Row> s) {
+        Objects.requireNonNull(s, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            s.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // nothing will ever come.
+                }
+                
+                @Override
+                public void cancel() {
+                    // nothing to cancel.
+                }
+            });
+            s.onError(new IllegalStateException("A command's rows can only be streamed to one subscriber"));
+            return;
+        }
+        subscriber = s;
+        s.onSubscribe(this);
+        try {
+            starter.accept(this);
+        } catch (RuntimeException e) {
+            // typically a full queue.
+            finish(e);
+        }
+    }
+    
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            badRequest = new IllegalArgumentException("Rows requested must be positive, not " + n);
+        } else {
+            long r;
+            do {
+                r = requested.get();
+                if (r == Long.MAX_VALUE) {
+                    break;
+                }
+            } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+        }
+        drain();
+    }
+    
+    @Override
+    public void cancel() {
+        cancelled = true;
+        drain();
+    }
+    
+    /**
+     * The transfer has started (called on the managing thread).
+     * @param frame the frame the rows are received in to.
+     * @param size the size of each row.
+     * @param count the number of rows.
+     */
+    void attach(ByteBuffer frame, int size, int count) {
+        this.frame = frame;
+        this.size = size;
+        this.landed = new int[count];
+    }
+    
+    /**
+     * A new row is complete in the frame (called on the managing thread).
+     * @param index the row's position in the frame.
+     */
+    void landed(int index) {
+        int count = landedCount;
+        landed[count] = index;
+        landedCount = count + 1;
+        drain();
+    }
+    
+    /**
+     * The transfer is over, the managing thread will not touch the frame again.
+     * @param failure why it failed, or null if all the rows have landed.
+     */
+    void finish(Throwable failure) {
+        error = failure;
+        finished = true;
+        drain();
+    }
+    
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            // someone else is draining, they will go around again for us.
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            if (!terminated) {
+                if (cancelled) {
+                    terminated = true;
+                } else if (badRequest != null) {
+                    terminated = true;
+                    subscriber.onError(badRequest);
+                } else {
+                    emit();
+                }
+            }
+            if (terminated && finished && !released) {
+                released = true;
+                if (frame != null) {
+                    FramePool.shared().release(frame);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+    
+    private void emit() {
+        // read 'finished' before the count, so a finished transfer's last rows are always seen.
+        final boolean done = finished;
+        final int available = landedCount;
+        long r = requested.get();
+        long e = 0L;
+        while (e != r && emitted < available && !cancelled && error == null) {
+            if (view == null) {
+                view = frame.asReadOnlyBuffer();
+            }
+            int index = landed[emitted++];
+            int offset = index * size;
+            view.limit(offset + size).position(offset);
+            subscriber.onNext(new Row(index, view.slice()));
+            e++;
+        }
+        if (e != 0 && r != Long.MAX_VALUE) {
+            requested.addAndGet(-e);
+        }
+        if (cancelled || !done) {
+            return;
+        }
+        if (error != null) {
+            terminated = true;
+            subscriber.onError(error);
+        } else if (emitted == available) {
+            terminated = true;
+            subscriber.onComplete();
+        }
+    }
+    
+}
@@ -0,0 +1,201 @@
+package camera;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the kernel's UDP statistics (on Linux), to see datagrams the kernel dropped because a socket's
+ * receive buffer was full. Those never reach the application, they just look like loss.
+ * 
+ * The host-wide RcvbufErrors count comes from /proc/net/snmp. The drops for each camera's socket come from
+ * /proc/net/udp (and udp6), by local port, and are passed back to the camera so it can grow its buffer.
+ * 
+ * Samples are taken every -Dcamera.udp.sample milliseconds (1000 by default, 0 to never sample), on a daemon
+ * thread started when the first camera is registered. Where the files do not exist, nothing is sampled.
+ */
+final class UdpMonitor implements Runnable {
+    
+    /**
+     * A socket to watch.
+     */
+    interface Watched {
+        
+        /**
+         * @return the local port of the socket.
+         */
+        int getLocalPort();
+        
+        /**
+         * The kernel dropped datagrams for this socket since the last sample. Called on the sampling thread.
+         * @param drops how many were dropped.
+         */
+        void onKernelDrops(long drops);
+    }
+    
+    private static final Path SNMP = Paths.get("/proc/net/snmp");
+    private static final Path[] SOCKETS = { Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6") };
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("camera.udp.sample", 1000L));
+    
+    private static final UdpMonitor SHARED = new UdpMonitor();
+    
+    static UdpMonitor shared() {
+        return SHARED;
+    }
+    
+    // the last drop count seen for each watched socket.
+    private final Map<Watched, Long> watched = new ConcurrentHashMap<>();
+    private final boolean available = INTERVAL > 0 && Files.isReadable(SNMP);
+    private Thread thread = null;
+    private volatile long firstRcvbufErrors = -1;
+    private volatile long lastRcvbufErrors = -1;
+    private volatile long lastDelta = 0;
+    
+    private UdpMonitor() {
+        // the shared one only.
+    }
+    
+    /**
+     * Start watching a socket for kernel drops.
+     */
+    void register(Watched socket) {
+        if (!available) {
+            return;
+        }
+        watched.put(socket, -1L);
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this, "Camera Control UDP Monitor");
+                // We are a daemon thread, so if the JVM dies, we do too.
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+    
+    void unregister(Watched socket) {
+        watched.remove(socket);
+    }
+    
+    /**
+     * @return the host-wide UDP receive buffer errors since sampling started (-1 if they cannot be sampled).
+     */
+    long getRcvbufErrors() {
+        return lastRcvbufErrors < 0 ? -1 : lastRcvbufErrors - firstRcvbufErrors;
+    }
+    
+    /**
+     * @return the host-wide UDP receive buffer errors in the last sample interval.
+     */
+    long getRcvbufErrorsDelta() {
+        return lastDelta;
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                sample();
+            } catch (IOException | RuntimeException e) {
+                AsyncLog.warn("Unable to sample the kernel UDP statistics: {}").arg(e).publish();
+            }
+            long end = System.nanoTime() + INTERVAL;
+            long wait;
+            while ((wait = end - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    // keep going, we are a daemon.
+                }
+            }
+        }
+    }
+    
+    private void sample() throws IOException {
+        long errors = rcvbufErrors(Files.readAllLines(SNMP, StandardCharsets.US_ASCII));
+        if (errors >= 0) {
+            if (firstRcvbufErrors < 0) {
+                firstRcvbufErrors = errors;
+            } else {
+                lastDelta = errors - lastRcvbufErrors;
+            }
+            lastRcvbufErrors = errors;
+        }
+        
+        if (watched.isEmpty()) {
+            return;
+        }
+        Map<Integer, Long> drops = new HashMap<>();
+        for (Path path : SOCKETS) {
+            if (Files.isReadable(path)) {
+                socketDrops(Files.readAllLines(path, StandardCharsets.US_ASCII), drops);
+            }
+        }
+        for (Map.Entry<Watched, Long> entry : watched.entrySet()) {
+            Long now = drops.get(entry.getKey().getLocalPort());
+            if (now == null) {
+                continue;
+            }
+            long before = entry.getValue();
+            entry.setValue(now);
+            if (before >= 0 && now > before) {
+                entry.getKey().onKernelDrops(now - before);
+            }
+        }
+    }
+    
+    /**
+     * @return the RcvbufErrors value from the Udp: lines of /proc/net/snmp, or -1 if it is not there.
+     */
+    static long rcvbufErrors(List<String> snmp) {
+        String[] names = null;
+        for (String line : snmp) {
+            if (!line.startsWith("Udp:")) {
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (names == null) {
+                names = fields;
+                continue;
+            }
+            for (int i = 1; i < names.length && i < fields.length; i++) {
+                if (names[i].equals("RcvbufErrors")) {
+                    return Long.parseLong(fields[i]);
+                }
+            }
+            return -1;
+        }
+        return -1;
+    }
+    
+    /**
+     * Collect the drops column of /proc/net/udp, by local port.
+     */
+    static void socketDrops(List<String> udp, Map<Integer, Long> drops) {
+        for (int n = 1; n < udp.size(); n++) {
+            String[] fields = udp.get(n).trim().split("\\s+");
+            if (fields.length < 13) {
+                continue;
+            }
+            String local = fields[1];
+            int colon = local.lastIndexOf(':');
+            try {
+                int port = Integer.parseInt(local.substring(colon + 1), 16);
+                long count = Long.parseLong(fields[fields.length - 1]);
+                // the same port may be open for IPv4 and IPv6.
+                Long other = drops.get(port);
+                drops.put(port, other == null ? count : other + count);
+            } catch (NumberFormatException e) {
+                // not a socket line.
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,53 @@
+package camera;
+
+/**
+ * How the thread that manages a camera waits for datagrams to arrive.
+ * 
+ * The selector based strategies share the threads of a CameraEventLoopGroup with other cameras.
+ * The others use a dedicated thread for the camera, trading threads (and CPU) for latency.
+ */
+public enum WaitStrategy {
+    
+    /**
+     * Wait on the (shared) selector, and read one datagram each time it reports the channel is ready.
+     * One select and one read system call per datagram.
+     */
+    SELECT(false),
+    
+    /**
+     * Wait on the (shared) selector, then read datagrams until there are none left, before waiting again.
+     * A burst of datagrams costs one select, and one read per datagram (plus one that finds nothing).
+     */
+    DRAIN(false),
+    
+    /**
+     * A dedicated thread, blocked in the socket with a timeout (SO_TIMEOUT) until the next deadline.
+     * No selector at all, but each datagram is copied from a staging array in to the frame.
+     * Best with a window of 1, as queued commands only start after a datagram arrives, or the wait times out.
+     */
+    BLOCKING(true),
+    
+    /**
+     * A dedicated thread that polls the socket continuously. The lowest latency, but it uses a whole CPU, all the time.
+     */
+    BUSY_SPIN(true),
+    
+    /**
+     * A dedicated thread that polls the socket, and yields the CPU to other threads when nothing has arrived for a while.
+     */
+    SPIN_YIELD(true);
+    
+    private final boolean dedicated;
+    
+    WaitStrategy(boolean dedicated) {
+        this.dedicated = dedicated;
+    }
+    
+    /**
+     * @return true if the camera needs its own thread, rather than sharing an event loop.
+     */
+    boolean isDedicated() {
+        return dedicated;
+    }
+    
+}